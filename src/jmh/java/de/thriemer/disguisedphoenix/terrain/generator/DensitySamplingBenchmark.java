@@ -0,0 +1,52 @@
+package de.thriemer.disguisedphoenix.terrain.generator;
+
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DensitySamplingBenchmark {
+
+    private static final int SAMPLES = 17;
+    private static final float STEP = 4f;
+
+    private WorldGenerator generator;
+    //the way the terrain generator used to consume the density function
+    private Function<Vector3f, Float> noiseFunction;
+    private final float[] densities = new float[SAMPLES * SAMPLES * SAMPLES];
+    private final float originX = 3 * TerrainGenerator.CHUNK_SIZE;
+    private final float originY = -2 * TerrainGenerator.CHUNK_SIZE;
+    private final float originZ = -7 * TerrainGenerator.CHUNK_SIZE;
+
+    @Setup
+    public void setup() {
+        generator = new WorldGenerator(10000);
+        noiseFunction = generator::getNoiseFunction;
+    }
+
+    @Benchmark
+    public float[] scalarLattice() {
+        Vector3f samplePoint = new Vector3f();
+        int index = 0;
+        for (int x = 0; x < SAMPLES; x++) {
+            for (int z = 0; z < SAMPLES; z++) {
+                for (int y = 0; y < SAMPLES; y++) {
+                    samplePoint.set(originX + x * STEP, originY + y * STEP, originZ + z * STEP);
+                    densities[index++] = noiseFunction.apply(samplePoint);
+                }
+            }
+        }
+        return densities;
+    }
+
+    @Benchmark
+    public float[] batchedLattice() {
+        generator.sampleLattice(densities, originX, originY, originZ, STEP, SAMPLES, SAMPLES, SAMPLES);
+        return densities;
+    }
+
+}
@@ -0,0 +1,61 @@
+package de.thriemer.engine.world;
+
+import de.thriemer.disguisedphoenix.Entity;
+import de.thriemer.engine.util.Maths;
+import de.thriemer.graphics.modelinfo.Model;
+import de.thriemer.graphics.modelinfo.RenderInfo;
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CullingBenchmark {
+
+    private static final int ENTITY_COUNT = 1_000_000;
+    private static final float WORLD_SIZE = 20000f;
+
+    private Octree octree;
+    private LinearOctree linearOctree;
+    private final FrustumIntersection frustum = new FrustumIntersection();
+    private final Vector3f cameraPosition = new Vector3f(0, 50, 0);
+
+    @Setup
+    public void setup() {
+        //no vao needed, the octrees only look at the index count
+        Model model = new Model(new RenderInfo(null, 300, 0, 0), new Vector3f(0, 1, 0), 1f, 1.5f, new Vector3f(-1, 0, -1), new Vector3f(1, 2, 1));
+        SplittableRandom random = new SplittableRandom(42);
+        List<Entity> entities = new ArrayList<>(ENTITY_COUNT);
+        octree = new Octree(new Vector3f(0), WORLD_SIZE, WORLD_SIZE, WORLD_SIZE);
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            //spread over a terrain like sheet, like the placed vegetation
+            Vector3f position = new Vector3f((float) (random.nextDouble() - 0.5) * WORLD_SIZE * 0.2f, (float) random.nextDouble() * 100f, (float) (random.nextDouble() - 0.5) * WORLD_SIZE * 0.2f);
+            Entity entity = new Entity(model, position, 0, (float) random.nextDouble() * 7f, 0, 0.5f + (float) random.nextDouble());
+            entities.add(entity);
+            octree.insert(entity);
+        }
+        linearOctree = new LinearOctree(entities, new Vector3f(-WORLD_SIZE / 2f), WORLD_SIZE);
+        Matrix4f projView = new Matrix4f().perspective((float) Math.toRadians(70), 16f / 9f, 0.1f, 10000f)
+                .lookAt(cameraPosition, new Vector3f(cameraPosition).add(1, -0.2f, 0.5f), new Vector3f(0, 1, 0));
+        frustum.set(projView);
+    }
+
+    @Benchmark
+    public void pointerOctree(Blackhole blackhole) {
+        octree.getAllVisibleEntities(frustum, (v, r) -> Maths.couldBeVisible(v, r, cameraPosition), blackhole::consume);
+    }
+
+    @Benchmark
+    public void linearOctree(Blackhole blackhole) {
+        linearOctree.forEachVisible(frustum, (x, y, z, r) -> Maths.couldBeVisible(x, y, z, r, cameraPosition), blackhole::consume);
+    }
+
+}
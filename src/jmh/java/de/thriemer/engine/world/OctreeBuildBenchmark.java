@@ -0,0 +1,50 @@
+package de.thriemer.engine.world;
+
+import de.thriemer.disguisedphoenix.Entity;
+import de.thriemer.graphics.modelinfo.Model;
+import de.thriemer.graphics.modelinfo.RenderInfo;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OctreeBuildBenchmark {
+
+    private static final int ENTITY_COUNT = 1_000_000;
+    private static final float WORLD_SIZE = 20000f;
+
+    private final List<Entity> entities = new ArrayList<>(ENTITY_COUNT);
+
+    @Setup
+    public void setup() {
+        Model model = new Model(new RenderInfo(null, 300, 0, 0), new Vector3f(0, 1, 0), 1f, 1.5f, new Vector3f(-1, 0, -1), new Vector3f(1, 2, 1));
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < ENTITY_COUNT; i++) {
+            Vector3f position = new Vector3f((float) (random.nextDouble() - 0.5) * WORLD_SIZE * 0.2f, (float) random.nextDouble() * 100f, (float) (random.nextDouble() - 0.5) * WORLD_SIZE * 0.2f);
+            entities.add(new Entity(model, position, 0, (float) random.nextDouble() * 7f, 0, 0.5f + (float) random.nextDouble()));
+        }
+    }
+
+    @Benchmark
+    public Octree singleInserts() {
+        Octree octree = new Octree(new Vector3f(0), WORLD_SIZE, WORLD_SIZE, WORLD_SIZE);
+        for (Entity e : entities) {
+            octree.insert(e);
+        }
+        return octree;
+    }
+
+    @Benchmark
+    public Octree bulkLoad() {
+        Octree octree = new Octree(new Vector3f(0), WORLD_SIZE, WORLD_SIZE, WORLD_SIZE);
+        octree.insertAll(entities);
+        return octree;
+    }
+
+}
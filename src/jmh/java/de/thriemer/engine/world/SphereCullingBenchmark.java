@@ -0,0 +1,50 @@
+package de.thriemer.engine.world;
+
+import de.thriemer.engine.util.Maths;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SphereCullingBenchmark {
+
+    private static final int SPHERE_COUNT = 1 << 16;
+
+    private final SphereBounds bounds = new SphereBounds(SPHERE_COUNT);
+    private final CoherentFrustum frustum = new CoherentFrustum();
+    private final SizeVisibility visibility = new SizeVisibility();
+    private final int[] masks = new int[SPHERE_COUNT];
+
+    @Setup
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < SPHERE_COUNT; i++) {
+            bounds.add((float) random.nextDouble(-1000, 1000), (float) random.nextDouble(0, 100), (float) random.nextDouble(-1000, 1000), (float) random.nextDouble(0.5, 3));
+        }
+        Vector3f cameraPosition = new Vector3f(0, 50, 0);
+        frustum.set(new Matrix4f().perspective((float) Math.toRadians(70), 16f / 9f, 0.1f, 2000f)
+                .lookAt(cameraPosition, new Vector3f(1, 40, 0.5f), new Vector3f(0, 1, 0)));
+        visibility.set(cameraPosition, Maths.NEEDED_SIZE_PER_LENGTH_UNIT, 0);
+    }
+
+    @Benchmark
+    public int[] scalar() {
+        Arrays.fill(masks, 0);
+        SphereCulling.cullScalar(bounds, 0, 0, SPHERE_COUNT, frustum.getPlanes(), visibility, 1, masks);
+        return masks;
+    }
+
+    @Benchmark
+    public int[] vectorized() {
+        Arrays.fill(masks, 0);
+        VectorSphereCulling.cull(bounds, 0, SPHERE_COUNT, frustum.getPlanes(), visibility, 1, masks);
+        return masks;
+    }
+
+}
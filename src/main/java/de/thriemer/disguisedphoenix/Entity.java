@@ -87,6 +87,7 @@ public class Entity {
 
     public void setPosition(Vector3f position) {
         this.position = position;
+        changedPosition = true;
     }
 
     public float getRotX() {
@@ -95,6 +96,7 @@ public class Entity {
 
     public void setRotX(float rotX) {
         this.rotX = rotX;
+        changedPosition = true;
     }
 
     public float getRotY() {
@@ -103,6 +105,7 @@ public class Entity {
 
     public void setRotY(float rotY) {
         this.rotY = rotY;
+        changedPosition = true;
     }
 
     public float getRotZ() {
@@ -111,6 +114,7 @@ public class Entity {
 
     public void setRotZ(float rotZ) {
         this.rotZ = rotZ;
+        changedPosition = true;
     }
 
     public float getScale() {
@@ -119,6 +123,7 @@ public class Entity {
 
     public void setScale(float scale) {
         this.scale = scale;
+        changedPosition = true;
     }
 
     public Collider getCollider() {
@@ -82,6 +82,7 @@ public class Main {
         //GLUtil.setupDebugMessageCallback();
         WorldGenerator worldGenerator = new WorldGenerator(radius);
         World world = worldGenerator.generateWorld(pm);
+        world.getTerrainArena().addInstancedAttributes(masterRenderer.getMultiDrawVBO());
         //world.loadEntireWorld(worldGenerator);
         FreeFlightCamera flightCamera = new FreeFlightCamera(mim, freeFlightCam);
         player.movement = kim;
@@ -102,6 +103,7 @@ public class Main {
         // input.hideMouseCursor();
         float switchCameraTimer = 0f;
         float captureMouseTimer = 0f;
+        float switchSpatialIndexTimer = 0f;
         CPUTimerQuery mainThread = new CPUTimerQuery("Main Thread");
         try {
             while (!display.shouldClose() && !input.isKeyDown(GLFW_KEY_ESCAPE)) {
@@ -123,11 +125,22 @@ public class Main {
                     freeFlightCamActivated = !freeFlightCamActivated;
                     OpenGLState.enableWireframe();
                 }
+                if (input.isKeyDown(GLFW_KEY_L) && switchSpatialIndexTimer < 0) {
+                    world.setUseLinearOctree(!world.isUseLinearOctree());
+                    log.info("Using {} for entity culling", world.isUseLinearOctree() ? "linear octree" : "octree");
+                    switchSpatialIndexTimer = 0.25f;
+                }
+                if (input.isKeyDown(GLFW_KEY_K) && switchSpatialIndexTimer < 0) {
+                    world.setParallelCullingDepth(world.getParallelCullingDepth() < 0 ? 2 : -1);
+                    log.info("Parallel culling {}", world.getParallelCullingDepth() < 0 ? "disabled" : "enabled");
+                    switchSpatialIndexTimer = 0.25f;
+                }
                 if (input.isKeyDown(GLFW_KEY_T)) {
                     TimerQuery.resetAll();
                 }
                 switchCameraTimer -= dt;
                 captureMouseTimer -= dt;
+                switchSpatialIndexTimer -= dt;
                 pm.update(dt);
                 Camera ffc = flightCamera;
                 ffc.update(dt);
@@ -140,7 +153,7 @@ public class Main {
                 screenShot(input, display);
                 display.clear();
                 avgFPS += zeitgeist.getFPS();
-                display.setFrameTitle("Disguised Phoenix: " + " FPS: " + zeitgeist.getFPS() + ", In frustum objects: " + inViewObjects + ", drawcalls: " + drawCalls + " faces: " + df.format(facesDrawn)+" "+flightCamera.getPosition());
+                display.setFrameTitle("Disguised Phoenix: " + " FPS: " + zeitgeist.getFPS() + ", In frustum objects: " + inViewObjects + ", drawcalls: " + drawCalls + " faces: " + df.format(facesDrawn) + ", chunks: " + world.getTerrainResidency().getResidentChunkCount() + " (" + df.format(world.getTerrainResidency().getResidentBytes() / 1024) + " kB) " + flightCamera.getPosition());
                 inViewObjects = 0;
                 inViewVerticies = 0;
                 facesDrawn = 0;
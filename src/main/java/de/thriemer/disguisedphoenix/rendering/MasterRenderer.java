@@ -6,14 +6,20 @@ import de.thriemer.disguisedphoenix.Player;
 import de.thriemer.disguisedphoenix.terrain.World;
 import de.thriemer.engine.time.CPUTimerQuery;
 import de.thriemer.engine.util.Maths;
+import de.thriemer.engine.world.FrustumMaskConsumer;
+import de.thriemer.engine.world.InstanceRanges;
+import de.thriemer.engine.world.SizeVisibility;
+import de.thriemer.engine.world.VisibilityPredicate;
 import de.thriemer.graphics.camera.Camera;
 import de.thriemer.graphics.core.context.ContextInformation;
 import de.thriemer.graphics.core.context.Display;
 import de.thriemer.graphics.core.objects.*;
 import de.thriemer.graphics.core.renderer.MultiIndirectRenderer;
+import de.thriemer.graphics.core.renderer.RenderQueue;
 import de.thriemer.graphics.core.renderer.TestRenderer;
 import de.thriemer.graphics.modelinfo.Model;
 import de.thriemer.graphics.modelinfo.RenderInfo;
+import de.thriemer.graphics.occlusion.ShadowEffect;
 import de.thriemer.graphics.particles.ParticleManager;
 import de.thriemer.graphics.postprocessing.GaussianBlur;
 import de.thriemer.graphics.postprocessing.HIZGenerator;
@@ -23,10 +29,6 @@ import lombok.Getter;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 import static org.lwjgl.opengl.GL11.*;
 
@@ -41,6 +43,30 @@ public class MasterRenderer {
 
     GPUTimerQuery vertexTimer = new GPUTimerQuery("Geometry Pass");
     CPUTimerQuery entityCollectionTimer = new CPUTimerQuery("Entity Collection");
+    private final SizeVisibility cameraVisibility = new SizeVisibility();
+    //reused every frame, frustum 0 is the camera, the shadow cascades follow
+    private final Matrix4f[] projViewMatrices = new Matrix4f[1 + ShadowEffect.SHADOWS_CASCADES];
+    private final VisibilityPredicate[] visibilities = new VisibilityPredicate[1 + ShadowEffect.SHADOWS_CASCADES];
+    private final RenderQueue renderQueue = new RenderQueue();
+    private final Vector3f terrainCenter = new Vector3f();
+    private ShadowEffect shadowEffect;
+    private final FrustumMaskConsumer visibleEntityConsumer = new FrustumMaskConsumer() {
+        @Override
+        public void accept(Entity e, int mask) {
+            if ((mask & 1) != 0) consumeRenderEntity(e);
+            for (int cascades = mask >>> 1; cascades != 0; cascades &= cascades - 1) {
+                shadowEffect.addToCascade(Integer.numberOfTrailingZeros(cascades), e);
+            }
+        }
+
+        @Override
+        public void acceptAll(InstanceRanges instances, int mask) {
+            if ((mask & 1) != 0) consumeRenderInstances(instances);
+            for (int cascades = mask >>> 1; cascades != 0; cascades &= cascades - 1) {
+                shadowEffect.addToCascade(Integer.numberOfTrailingZeros(cascades), instances);
+            }
+        }
+    };
 
     private FrameBufferObject gBuffer;
 
@@ -54,10 +80,12 @@ public class MasterRenderer {
     HIZGenerator hizGen = new HIZGenerator(quadRenderer);
     Pipeline postProcessPipeline;
     private final TestRenderer renderer;
+    private final ParticleManager particleManager;
 
     public MasterRenderer(ParticleManager particleManager,ContextInformation contextInformation) {
         int width = contextInformation.getWidth();
         int height = contextInformation.getHeight();
+        this.particleManager = particleManager;
         cameraInformation = new CameraInformation(NEAR_PLANE, FAR_PLANE, FOV, contextInformation.getAspectRatio());
         multiIndirectRenderer = new MultiIndirectRenderer();
         vegetationRenderer = new VegetationRenderer(multiIndirectRenderer);
@@ -91,9 +119,21 @@ public class MasterRenderer {
        if(wireframe)
            OpenGLState.enableWireframe();
         cameraInformation.updateCameraMatrix(viewMatrix);
+        shadowEffect = shadowRenderer.shadowEffect;
+        if (shadowEffect.isEnabled()) {
+            shadowEffect.updateCascades(cameraInformation, lightPos);
+        }
         entityCollectionTimer.startQuery();
-        Map<Vao, Map<RenderInfo, List<Matrix4f>>> vaoSortedEntries = new HashMap<>();
-        world.consumeVisibleEntities(cameraInformation.getProjViewMatrix(), (v,f) -> Maths.couldBeVisible(v,f, camPos), e -> consumeRenderEntity(e, vaoSortedEntries));
+        world.getStaticEntities().drainReleasedInstanceRanges(multiIndirectRenderer::releaseInstances);
+        renderQueue.begin(camPos);
+        int frustumCount = shadowEffect.isEnabled() ? 1 + ShadowEffect.SHADOWS_CASCADES : 1;
+        projViewMatrices[0] = cameraInformation.getProjViewMatrix();
+        visibilities[0] = cameraVisibility.set(camPos, Maths.NEEDED_SIZE_PER_LENGTH_UNIT, 0);
+        for (int i = 1; i < frustumCount; i++) {
+            projViewMatrices[i] = shadowEffect.getCascadeProjViewMatrix(i - 1);
+            visibilities[i] = shadowEffect.getCascadeVisibility(i - 1);
+        }
+        world.consumeVisibleEntities(projViewMatrices, visibilities, frustumCount, visibleEntityConsumer);
         entityCollectionTimer.stopQuery();
         vertexTimer.startQuery();
         OpenGLState.enableBackFaceCulling();
@@ -102,22 +142,20 @@ public class MasterRenderer {
         gBuffer.bind();
         glClearColor(0.1f, 0.1f, 0.9f, 0.0f);
         gBuffer.clear();
-        renderer.begin(cameraInformation);
-        Matrix4f unitMatrix = new Matrix4f();
         for (Model model : world.getVisibleTerrains(cameraInformation.getProjViewMatrix())) {
-            renderer.render(model, unitMatrix);
+            consumeTerrain(model);
         }
+        renderer.begin(cameraInformation);
         renderer.render(player.getModel(), player.getTransformationMatrix());
-        hizGen.generateHiZMipMap(gBuffer);
         //TODO: more performant occlusion culling
 
-        vegetationRenderer.prepareRender(vaoSortedEntries);
+        vegetationRenderer.prepareRender(renderQueue);
         gBuffer.bind();
         vegetationRenderer.render(time, cameraInformation);
         hizGen.generateHiZMipMap(gBuffer);
         vertexTimer.stopQuery();
         OpenGLState.disableWireframe();
-        shadowRenderer.render(gBuffer, cameraInformation, time, lightPos, world, multiIndirectRenderer);
+        shadowRenderer.render(gBuffer, cameraInformation, time, multiIndirectRenderer);
         OpenGLState.enableAlphaBlending();
         OpenGLState.disableDepthTest();
         gBuffer.blitDepth(lightingPassRenderer.deferredResult);
@@ -126,23 +164,44 @@ public class MasterRenderer {
         display.clear();
         postProcessPipeline.applyPostProcessing(display,cameraInformation.getProjectionMatrix(), lightingPassRenderer.deferredResult, gBuffer.getDepthTexture(), camera, shadowRenderer.shadowEffect.getShadowProjViewMatrix(), shadowRenderer.shadowEffect.getShadowTextureArray(), lightPos);
         // nuklearBinding.renderGUI(display.getWidth(),display.getHeight());
+        multiIndirectRenderer.endFrame();
+        particleManager.endFrame();
+        world.getTerrainArena().endFrame();
         display.flipBuffers();
     }
     //TODO: add GUI
 
 
-    private void consumeRenderEntity(Entity e, Map<Vao, Map<RenderInfo, List<Matrix4f>>> vaoSortedEntries) {
-        //sort entities according to Vao and model (remember one vao has multiple models)
+    private void consumeRenderEntity(Entity e) {
         RenderInfo entityRenderInfo = e.getModel().getRenderInfo();
         if (entityRenderInfo.isMultiDrawCapable()) {
-            Map<RenderInfo, List<Matrix4f>> instanceMap = vaoSortedEntries.computeIfAbsent(entityRenderInfo.getActualVao(), k -> new HashMap<>());
-            List<Matrix4f> entityTransformation = instanceMap.computeIfAbsent(entityRenderInfo, k -> new ArrayList<>());
-            entityTransformation.add(e.getTransformationMatrix());
+            renderQueue.add(e);
             Main.inViewObjects++;
             Main.facesDrawn += entityRenderInfo.getIndicesCount() / 3;
         }
     }
 
+    //terrain chunks are drawn from the terrain arena together with the vegetation
+    private void consumeTerrain(Model terrain) {
+        RenderInfo renderInfo = terrain.getRenderInfo();
+        terrainCenter.set(terrain.getMinAABB()).add(terrain.getMaxAABB()).mul(0.5f);
+        renderQueue.add(renderInfo, terrainCenter);
+        Main.inViewObjects++;
+        Main.facesDrawn += renderInfo.getIndicesCount() / 3;
+    }
+
+    private void consumeRenderInstances(InstanceRanges instances) {
+        renderQueue.addAll(instances);
+        for (int range = 0; range < instances.getRangeCount(); range++) {
+            RenderInfo renderInfo = instances.getRenderInfo(range);
+            if (renderInfo.isMultiDrawCapable()) {
+                int instanceCount = instances.getInstanceCount(range);
+                Main.inViewObjects += instanceCount;
+                Main.facesDrawn += renderInfo.getIndicesCount() / 3 * instanceCount;
+            }
+        }
+    }
+
     public void resize(ContextInformation contextInformation) {
         int width = contextInformation.getWidth();
         int height = contextInformation.getHeight();
@@ -153,8 +212,8 @@ public class MasterRenderer {
         cameraInformation.update(NEAR_PLANE, FAR_PLANE, FOV, contextInformation.getAspectRatio());
     }
 
-    public BufferObject getMultiDrawVBO() {
-        return multiIndirectRenderer.getPersistentMatrixVbo();
+    public StreamingBuffer getMultiDrawVBO() {
+        return multiIndirectRenderer.getInstanceBuffer();
     }
 
 }
@@ -1,6 +1,5 @@
 package de.thriemer.disguisedphoenix.rendering;
 
-import de.thriemer.disguisedphoenix.terrain.World;
 import de.thriemer.graphics.core.context.ContextInformation;
 import de.thriemer.graphics.core.objects.FrameBufferObject;
 import de.thriemer.graphics.core.renderer.MultiIndirectRenderer;
@@ -9,7 +8,6 @@ import de.thriemer.graphics.occlusion.SSAOEffect;
 import de.thriemer.graphics.occlusion.ShadowEffect;
 import de.thriemer.graphics.postprocessing.QuadRenderer;
 import org.joml.Matrix4f;
-import org.joml.Vector3f;
 
 public class ShadowRenderer {
 
@@ -26,8 +24,8 @@ public class ShadowRenderer {
 
     }
 
-    public void render(FrameBufferObject gBuffer, CameraInformation cameraInformation, float time, Vector3f lightPos, World world, MultiIndirectRenderer multiRenderer) {
-        shadowEffect.render(cameraInformation, time, lightPos, world, multiRenderer);
+    public void render(FrameBufferObject gBuffer, CameraInformation cameraInformation, float time, MultiIndirectRenderer multiRenderer) {
+        shadowEffect.render(time, multiRenderer);
         if(shadowEffect.isEnabled())
             csmResolver.render(cameraInformation,gBuffer.getDepthTexture(), shadowEffect);
         ssaoEffect.renderEffect(gBuffer, cameraInformation);
@@ -0,0 +1,287 @@
+package de.thriemer.disguisedphoenix.terrain;
+
+import de.thriemer.disguisedphoenix.terrain.generator.TerrainGenerator;
+import de.thriemer.graphics.loader.MeshInformation;
+import lombok.extern.slf4j.Slf4j;
+import org.joml.Vector2i;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Stores finished terrain meshes in region files, each holding every level of detail of REGION_SIZE*REGION_SIZE chunks.
+ * The cache directory is named after the seed and the generator parameter hash,
+ * caches of an outdated parameter set are deleted on startup, caches of other seeds are kept.
+ */
+@Slf4j
+public class ChunkMeshCache {
+
+    static final int REGION_SIZE = 16;
+    //seed-generatorHash
+    private static final Pattern CACHE_NAME = Pattern.compile("-?\\d+-[0-9a-f]+");
+
+    private final Path cacheDirectory;
+    private final int generatorHash;
+    private final Map<Long, RegionFile> openRegions = new ConcurrentHashMap<>();
+    private boolean enabled = true;
+
+    public ChunkMeshCache(Path rootDirectory, int seed, int generatorHash) {
+        this.generatorHash = generatorHash;
+        cacheDirectory = rootDirectory.resolve(seed + "-" + Integer.toHexString(generatorHash));
+        try {
+            deleteStaleCaches(rootDirectory);
+            Files.createDirectories(cacheDirectory);
+        } catch (IOException e) {
+            log.error("Could not prepare chunk cache in {}, caching is disabled", cacheDirectory, e);
+            enabled = false;
+        }
+    }
+
+    public MeshInformation load(Vector2i chunkIndex, int lod) {
+        if (!enabled) return null;
+        try {
+            ByteBuffer data = getRegion(chunkIndex).read(getEntry(chunkIndex, lod));
+            if (data == null) return null;
+            float[] vertexPositions = new float[data.getInt()];
+            float[] colors = new float[data.getInt()];
+            int[] indicies = new int[data.getInt()];
+            data.asFloatBuffer().get(vertexPositions);
+            data.position(data.position() + vertexPositions.length * 4);
+            data.asFloatBuffer().get(colors);
+            data.position(data.position() + colors.length * 4);
+            data.asIntBuffer().get(indicies);
+            return new MeshInformation(chunkIndex.toString() + "_" + lod, null, vertexPositions, colors, indicies);
+        } catch (IOException e) {
+            log.error("Could not read cached chunk {} lod {}", chunkIndex, lod, e);
+            return null;
+        }
+    }
+
+    public void store(Vector2i chunkIndex, int lod, MeshInformation mesh) {
+        if (!enabled) return;
+        int byteSize = 3 * 4 + (mesh.vertexPositions.length + mesh.colors.length + mesh.indicies.length) * 4;
+        ByteBuffer data = ByteBuffer.allocate(byteSize).order(ByteOrder.nativeOrder());
+        data.putInt(mesh.vertexPositions.length);
+        data.putInt(mesh.colors.length);
+        data.putInt(mesh.indicies.length);
+        data.asFloatBuffer().put(mesh.vertexPositions);
+        data.position(data.position() + mesh.vertexPositions.length * 4);
+        data.asFloatBuffer().put(mesh.colors);
+        data.position(data.position() + mesh.colors.length * 4);
+        data.asIntBuffer().put(mesh.indicies);
+        data.rewind();
+        try {
+            getRegion(chunkIndex).write(getEntry(chunkIndex, lod), data);
+        } catch (IOException e) {
+            log.error("Could not cache chunk {} lod {}", chunkIndex, lod, e);
+        }
+    }
+
+    public void close() {
+        for (RegionFile region : openRegions.values()) {
+            try {
+                region.close();
+            } catch (IOException e) {
+                log.error("Could not close region file", e);
+            }
+        }
+        openRegions.clear();
+    }
+
+    private RegionFile getRegion(Vector2i chunkIndex) throws IOException {
+        int regionX = Math.floorDiv(chunkIndex.x, REGION_SIZE);
+        int regionZ = Math.floorDiv(chunkIndex.y, REGION_SIZE);
+        long key = ((long) regionX << 32) | (regionZ & 0xffffffffL);
+        RegionFile region = openRegions.get(key);
+        if (region == null) {
+            synchronized (openRegions) {
+                region = openRegions.get(key);
+                if (region == null) {
+                    region = new RegionFile(cacheDirectory.resolve("r." + regionX + "." + regionZ + ".dpc"), generatorHash);
+                    openRegions.put(key, region);
+                }
+            }
+        }
+        return region;
+    }
+
+    private static int getEntry(Vector2i chunkIndex, int lod) {
+        return (Math.floorMod(chunkIndex.x, REGION_SIZE) * REGION_SIZE + Math.floorMod(chunkIndex.y, REGION_SIZE)) * TerrainGenerator.LOD_LEVELS + lod;
+    }
+
+    private void deleteStaleCaches(Path rootDirectory) throws IOException {
+        if (!Files.isDirectory(rootDirectory)) return;
+        String currentHash = "-" + Integer.toHexString(generatorHash);
+        try (Stream<Path> caches = Files.list(rootDirectory)) {
+            for (Path cache : caches.filter(p -> isStaleCache(p, currentHash)).toList()) {
+                log.info("Deleting outdated chunk cache {}", cache);
+                try (Stream<Path> content = Files.walk(cache)) {
+                    for (Path p : content.sorted(Comparator.reverseOrder()).toList()) {
+                        Files.delete(p);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isStaleCache(Path cache, String currentHash) {
+        String name = cache.getFileName().toString();
+        return Files.isDirectory(cache) && CACHE_NAME.matcher(name).matches() && !name.endsWith(currentHash);
+    }
+
+}
+
+@Slf4j
+class RegionFile {
+
+    private static final int MAGIC = 0x4450_4d43;
+    private static final int ENTRY_COUNT = ChunkMeshCache.REGION_SIZE * ChunkMeshCache.REGION_SIZE * TerrainGenerator.LOD_LEVELS;
+    private static final int ENTRY_BYTES = 8 + 4;
+    private static final int HEADER_BYTES = 4 + 4 + ENTRY_COUNT * ENTRY_BYTES;
+
+    private final Path path;
+    private FileChannel channel;
+    private final long[] offsets = new long[ENTRY_COUNT];
+    private final int[] lengths = new int[ENTRY_COUNT];
+    //the whole file, mapped again once entries are appended behind it
+    private ByteBuffer mapping;
+
+    RegionFile(Path path, int generatorHash) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() >= HEADER_BYTES && readHeader(generatorHash)) {
+            compactIfWasteful(generatorHash);
+            return;
+        }
+        //new or written by another generator, start from scratch
+        channel.truncate(0);
+        writeHeader(channel, generatorHash);
+    }
+
+    //read into the heap, a live mapping would keep windows from replacing the file during compaction
+    private boolean readHeader(int generatorHash) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) return false;
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != generatorHash) return false;
+        long size = channel.size();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            long offset = header.getLong();
+            int length = header.getInt();
+            //entries pointing outside of the file are left over from an interrupted write, they get generated again
+            if (length < 0 || offset < HEADER_BYTES || offset > size - length) continue;
+            offsets[i] = offset;
+            lengths[i] = length;
+        }
+        return true;
+    }
+
+    private void writeHeader(FileChannel target, int generatorHash) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC).putInt(generatorHash);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            header.putLong(offsets[i]).putInt(lengths[i]);
+        }
+        header.rewind();
+        writeFully(target, header, 0);
+    }
+
+    //entries that outgrew their slot leave their old data behind, rewrite the file once more than half of it is unused
+    private void compactIfWasteful(int generatorHash) throws IOException {
+        long usedBytes = HEADER_BYTES;
+        for (int length : lengths) {
+            usedBytes += length;
+        }
+        if (channel.size() <= 2 * usedBytes) return;
+        log.info("Compacting chunk cache region {} from {} to {} bytes", path, channel.size(), usedBytes);
+        Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        long[] oldOffsets = offsets.clone();
+        try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long offset = HEADER_BYTES;
+            for (int i = 0; i < ENTRY_COUNT; i++) {
+                if (lengths[i] == 0) continue;
+                target.position(offset);
+                long copied = 0;
+                while (copied < lengths[i]) {
+                    copied += channel.transferTo(oldOffsets[i] + copied, lengths[i] - copied, target);
+                }
+                offsets[i] = offset;
+                offset += lengths[i];
+            }
+            writeHeader(target, generatorHash);
+        }
+        channel.close();
+        try {
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            //e.g. a mapping of an earlier instance that wasn't collected yet, keep the old file and try again on the next open
+            log.warn("Could not replace chunk cache region {} with its compacted copy", path, e);
+            System.arraycopy(oldOffsets, 0, offsets, 0, ENTRY_COUNT);
+            Files.deleteIfExists(compacted);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    //the returned slice shares the mapping, it is only valid until the entry is written again
+    synchronized ByteBuffer read(int entry) throws IOException {
+        if (lengths[entry] == 0) return null;
+        long end = offsets[entry] + lengths[entry];
+        //a single mapping can't reach past 2GB, entries behind that get one of their own
+        if (end > Integer.MAX_VALUE) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offsets[entry], lengths[entry]).order(ByteOrder.nativeOrder());
+        }
+        if (mapping == null || mapping.capacity() < end) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+        }
+        return mapping.slice((int) offsets[entry], lengths[entry]).order(ByteOrder.nativeOrder());
+    }
+
+    synchronized void write(int entry, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        long offset;
+        if (lengths[entry] >= length) {
+            //the new mesh fits into the old slot, invalidate the entry first so an interrupted write never points to garbage
+            offset = offsets[entry];
+            writeTableEntry(entry, 0, 0);
+        } else {
+            offset = channel.size();
+        }
+        writeFully(channel, data, offset);
+        //the table entry is written after the data so an interrupted write never points to garbage
+        writeTableEntry(entry, offset, length);
+        offsets[entry] = offset;
+        lengths[entry] = length;
+    }
+
+    private void writeTableEntry(int entry, long offset, int length) throws IOException {
+        ByteBuffer tableEntry = ByteBuffer.allocate(ENTRY_BYTES).order(ByteOrder.nativeOrder());
+        tableEntry.putLong(offset).putInt(length).rewind();
+        writeFully(channel, tableEntry, 8L + (long) entry * ENTRY_BYTES);
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer data, long offset) throws IOException {
+        int length = data.remaining();
+        while (data.hasRemaining()) {
+            target.write(data, offset + length - data.remaining());
+        }
+    }
+
+    synchronized void close() throws IOException {
+        mapping = null;
+        channel.close();
+    }
+
+}
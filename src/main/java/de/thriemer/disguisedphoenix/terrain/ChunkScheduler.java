@@ -0,0 +1,226 @@
+package de.thriemer.disguisedphoenix.terrain;
+
+import de.thriemer.engine.util.LongIntHashMap;
+import de.thriemer.graphics.loader.PackedMesh;
+import lombok.extern.slf4j.Slf4j;
+import org.joml.Vector2i;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Decides which terrain chunks get generated next. Every frame the chunks in view are requested again,
+ * requests that aren't repeated are cancelled before they ever reach a worker. Queued chunks inside the frustum
+ * come first, then the closest ones. Only as many chunks are generated at once as there are spare cores.
+ */
+@Slf4j
+public class ChunkScheduler {
+
+    public static final int NONE = 0;
+    public static final int QUEUED = 1;
+    public static final int GENERATING = 2;
+    public static final int READY = 3;
+    public static final int UPLOADED = 4;
+
+    //state layout: bits 0-2 state, bit 3 entities placed, bits 4-7 skirt borders, bits 8+ level of detail
+    private static final int STATE_MASK = 0x7;
+    private static final int POPULATED = 0x8;
+    private static final int SKIRT_SHIFT = 4;
+    private static final int SKIRT_MASK = 0xf;
+    private static final int LOD_SHIFT = 8;
+
+    private final LongIntHashMap chunkStates = new LongIntHashMap(1024);
+    private final PriorityQueue<ChunkJob> queue = new PriorityQueue<>((a, b) -> a.inFrustum != b.inFrustum ?
+            (a.inFrustum ? -1 : 1) : Float.compare(a.distanceSquared, b.distanceSquared));
+    private final List<ChunkJob> running = new ArrayList<>();
+    private final Deque<ChunkJob> jobPool = new ArrayDeque<>();
+    private final int maxConcurrency;
+    private final ExecutorService executor;
+
+    public ChunkScheduler() {
+        //leave one core to the render thread
+        maxConcurrency = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        executor = Executors.newFixedThreadPool(maxConcurrency, r -> {
+            Thread thread = new Thread(r, "chunk-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //cancels every job that didn't make it to a worker last frame, chunks still in view get requested again
+    public void beginFrame() {
+        for (ChunkJob job : queue) {
+            //the ready result was already dropped by the upload queue, so the chunk has to be generated again
+            boolean wasReady = (job.previousState & STATE_MASK) == READY;
+            restore(job.key, wasReady ? job.previousState & POPULATED : job.previousState);
+            jobPool.push(job);
+        }
+        queue.clear();
+    }
+
+    //skirt borders are the borders towards neighbours with a different level of detail, a change of them regenerates the chunk
+    public void request(int x, int y, int lod, int skirtBorders, boolean inFrustum, float distanceSquared) {
+        long key = LongIntHashMap.key(x, y);
+        int value = chunkStates.get(key, NONE);
+        int state = value & STATE_MASK;
+        if (state == QUEUED || state == GENERATING) return;
+        //a ready chunk waiting for its upload is replaced as well, the upload queue drops it once it is no longer current
+        if ((state == READY || state == UPLOADED) && getLod(value) == lod && getSkirtBorders(value) == skirtBorders) return;
+        ChunkJob job = jobPool.isEmpty() ? new ChunkJob() : jobPool.pop();
+        job.key = key;
+        job.chunkIndex.set(x, y);
+        job.lod = lod;
+        job.skirtBorders = skirtBorders;
+        job.inFrustum = inFrustum;
+        job.distanceSquared = distanceSquared;
+        job.previousState = value;
+        chunkStates.put(key, encode(QUEUED, job, value & POPULATED));
+        queue.add(job);
+    }
+
+    public void dispatch(ChunkGenerator generator) {
+        while (running.size() < maxConcurrency && !queue.isEmpty()) {
+            ChunkJob job = queue.poll();
+            //only place entities once, on the full detail surface
+            boolean populate = job.lod == 0 && (job.previousState & POPULATED) == 0;
+            int populated = populate ? POPULATED : job.previousState & POPULATED;
+            chunkStates.put(job.key, encode(GENERATING, job, populated));
+            Vector2i chunkIndex = new Vector2i(job.chunkIndex);
+            int lod = job.lod;
+            int skirtBorders = job.skirtBorders;
+            job.result = executor.submit(() -> generator.generate(chunkIndex, lod, skirtBorders, populate));
+            running.add(job);
+        }
+    }
+
+    //hands every finished chunk that is still wanted to the consumer, which has to call markUploaded once it's on the gpu
+    public void collectFinished(Consumer<ChunkJob> readyConsumer) {
+        Iterator<ChunkJob> itr = running.iterator();
+        while (itr.hasNext()) {
+            ChunkJob job = itr.next();
+            if (!job.result.isDone()) continue;
+            itr.remove();
+            int value = chunkStates.get(job.key, NONE);
+            //evicted while generating, the result is stale
+            if ((value & STATE_MASK) != GENERATING) {
+                recycle(job);
+                continue;
+            }
+            try {
+                job.mesh = job.result.get();
+                chunkStates.put(job.key, encode(READY, job, value & POPULATED));
+                readyConsumer.accept(job);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                restore(job.key, value & POPULATED);
+                recycle(job);
+            } catch (ExecutionException e) {
+                log.error("Could not generate chunk {} lod {}", job.chunkIndex, job.lod, e.getCause());
+                restore(job.key, value & POPULATED);
+                recycle(job);
+            }
+        }
+    }
+
+    public void markUploaded(ChunkJob job) {
+        if (isCurrent(job)) {
+            chunkStates.put(job.key, encode(UPLOADED, job, chunkStates.get(job.key, NONE) & POPULATED));
+        }
+        recycle(job);
+    }
+
+    //false once the chunk was evicted or requested with another level of detail or other skirts after the job finished
+    public boolean isCurrent(ChunkJob job) {
+        int value = chunkStates.get(job.key, NONE);
+        return (value & STATE_MASK) == READY && getLod(value) == job.lod && getSkirtBorders(value) == job.skirtBorders;
+    }
+
+    //for finished jobs that won't be uploaded
+    public void discard(ChunkJob job) {
+        recycle(job);
+    }
+
+    //the chunk has to be generated again when needed, its entities stay in the world
+    public void evicted(Vector2i chunkIndex) {
+        long key = LongIntHashMap.key(chunkIndex.x, chunkIndex.y);
+        int value = chunkStates.get(key, NONE);
+        //a queued job would restore the evicted state at the start of the next frame
+        if ((value & STATE_MASK) == QUEUED) {
+            queue.removeIf(job -> {
+                if (job.key != key) return false;
+                jobPool.push(job);
+                return true;
+            });
+        }
+        restore(key, value & POPULATED);
+    }
+
+    //level of detail the chunk is uploaded with or on its way to, -1 if it isn't
+    public int getLod(int x, int y) {
+        int value = chunkStates.get(LongIntHashMap.key(x, y), NONE);
+        return (value & STATE_MASK) == NONE ? -1 : getLod(value);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void restore(long key, int value) {
+        if (value == NONE) {
+            chunkStates.remove(key, NONE);
+        } else {
+            chunkStates.put(key, value);
+        }
+    }
+
+    private void recycle(ChunkJob job) {
+        job.result = null;
+        job.mesh = null;
+        jobPool.push(job);
+    }
+
+    private static int encode(int state, ChunkJob job, int populated) {
+        return state | populated | (job.skirtBorders << SKIRT_SHIFT) | (job.lod << LOD_SHIFT);
+    }
+
+    private static int getLod(int value) {
+        return value >>> LOD_SHIFT;
+    }
+
+    private static int getSkirtBorders(int value) {
+        return (value >>> SKIRT_SHIFT) & SKIRT_MASK;
+    }
+
+    public interface ChunkGenerator {
+        PackedMesh generate(Vector2i chunkIndex, int lod, int skirtBorders, boolean populate);
+    }
+
+    public static class ChunkJob {
+        private long key;
+        private final Vector2i chunkIndex = new Vector2i();
+        private int lod;
+        private int skirtBorders;
+        private boolean inFrustum;
+        private float distanceSquared;
+        private int previousState;
+        private Future<PackedMesh> result;
+        private PackedMesh mesh;
+
+        public Vector2i getChunkIndex() {
+            return chunkIndex;
+        }
+
+        public int getLod() {
+            return lod;
+        }
+
+        public PackedMesh getMesh() {
+            return mesh;
+        }
+    }
+
+}
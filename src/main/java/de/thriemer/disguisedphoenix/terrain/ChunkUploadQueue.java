@@ -0,0 +1,87 @@
+package de.thriemer.disguisedphoenix.terrain;
+
+import de.thriemer.engine.time.CPUTimerQuery;
+import de.thriemer.engine.time.CounterQuery;
+import lombok.Getter;
+import org.joml.Vector2i;
+import org.joml.Vector3f;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static de.thriemer.disguisedphoenix.terrain.generator.TerrainGenerator.CHUNK_SIZE;
+
+/**
+ * Generated chunks wait here until they get uploaded, so a burst of finished generator jobs is spread over several frames.
+ * Every frame the chunks closest to the camera are uploaded until the byte or the time budget is used up,
+ * at least one chunk is uploaded per frame so even a chunk bigger than the budget gets through.
+ * Chunks that were evicted or requested again with another level of detail while waiting are dropped without an upload.
+ */
+public class ChunkUploadQueue {
+
+    private final long bytesPerFrame;
+    private final long nanosPerFrame;
+    private final ChunkScheduler scheduler;
+    private final List<ChunkScheduler.ChunkJob> pending = new ArrayList<>();
+    private final CounterQuery depthQuery = new CounterQuery("Chunk upload queue depth");
+    private final CounterQuery bytesQuery = new CounterQuery("Chunk upload bytes");
+    private final CPUTimerQuery uploadTimer = new CPUTimerQuery("Chunk upload");
+    @Getter
+    private long uploadedBytes;
+
+    public ChunkUploadQueue(ChunkScheduler scheduler, long bytesPerFrame, float millisPerFrame) {
+        this.scheduler = scheduler;
+        this.bytesPerFrame = bytesPerFrame;
+        this.nanosPerFrame = (long) (millisPerFrame * 1_000_000);
+    }
+
+    public void add(ChunkScheduler.ChunkJob job) {
+        pending.add(job);
+    }
+
+    public int getQueueDepth() {
+        return pending.size();
+    }
+
+    public void upload(Vector3f cameraPosition, Consumer<ChunkScheduler.ChunkJob> uploader) {
+        uploadedBytes = 0;
+        pending.removeIf(job -> {
+            if (scheduler.isCurrent(job)) return false;
+            scheduler.discard(job);
+            return true;
+        });
+        if (!pending.isEmpty()) uploadPending(cameraPosition, uploader);
+        depthQuery.startQuery();
+        depthQuery.count(pending.size());
+        depthQuery.stopQuery();
+        bytesQuery.startQuery();
+        bytesQuery.count((int) uploadedBytes);
+        bytesQuery.stopQuery();
+    }
+
+    private void uploadPending(Vector3f cameraPosition, Consumer<ChunkScheduler.ChunkJob> uploader) {
+        uploadTimer.startQuery();
+        long start = System.nanoTime();
+        pending.sort((a, b) -> Float.compare(distanceSquared(a, cameraPosition), distanceSquared(b, cameraPosition)));
+        int uploaded = 0;
+        while (uploaded < pending.size()) {
+            long byteSize = pending.get(uploaded).getMesh().getByteSize();
+            boolean overBudget = uploadedBytes + byteSize > bytesPerFrame || System.nanoTime() - start > nanosPerFrame;
+            if (uploaded > 0 && overBudget) break;
+            uploader.accept(pending.get(uploaded));
+            uploadedBytes += byteSize;
+            uploaded++;
+        }
+        pending.subList(0, uploaded).clear();
+        uploadTimer.stopQuery();
+    }
+
+    private static float distanceSquared(ChunkScheduler.ChunkJob job, Vector3f cameraPosition) {
+        Vector2i chunkIndex = job.getChunkIndex();
+        float dx = (chunkIndex.x + 0.5f) * CHUNK_SIZE - cameraPosition.x;
+        float dz = (chunkIndex.y + 0.5f) * CHUNK_SIZE - cameraPosition.z;
+        return dx * dx + dz * dz;
+    }
+
+}
@@ -5,15 +5,16 @@ import org.joml.Vector3f;
 
 import java.util.AbstractMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 public class PositionProvider {
 
-    Random random = new Random();
+    SplittableRandom random;
     MeshInformation meshInformation;
 
-    public PositionProvider(MeshInformation meshInformation) {
+    public PositionProvider(MeshInformation meshInformation, SplittableRandom random) {
         this.meshInformation = meshInformation;
+        this.random = random;
     }
 
     public Map.Entry<Vector3f,Vector3f> getRandomPosition() {
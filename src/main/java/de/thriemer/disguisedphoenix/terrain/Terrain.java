@@ -1,15 +1,31 @@
 package de.thriemer.disguisedphoenix.terrain;
 
+import de.thriemer.graphics.core.objects.MeshArena;
 import de.thriemer.graphics.modelinfo.Model;
 import lombok.Getter;
-import org.joml.Vector3f;
+import org.joml.Vector2i;
 
 public class Terrain {
     //TODO: collision
     @Getter
     Model model;
+    @Getter
+    Vector2i chunkIndex;
+    @Getter
+    int lod;
+    //memory occupied by the vertex and index buffers
+    @Getter
+    long byteSize;
+    int lastVisibleFrame;
 
-    public Terrain(Model model) {
+    public Terrain(Model model, Vector2i chunkIndex, int lod, long byteSize) {
         this.model = model;
+        this.chunkIndex = chunkIndex;
+        this.lod = lod;
+        this.byteSize = byteSize;
+    }
+
+    public void cleanUp(MeshArena arena) {
+        arena.remove(model.getRenderInfo());
     }
 }
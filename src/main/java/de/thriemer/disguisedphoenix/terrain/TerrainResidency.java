@@ -0,0 +1,85 @@
+package de.thriemer.disguisedphoenix.terrain;
+
+import lombok.Getter;
+import org.joml.Vector2i;
+import org.joml.Vector3f;
+
+import java.util.*;
+
+import static de.thriemer.disguisedphoenix.terrain.generator.TerrainGenerator.CHUNK_SIZE;
+
+/**
+ * Keeps track of all uploaded terrain chunks and evicts them once they are farther away than the eviction radius
+ * or the resident chunks exceed the byte budget, least recently visible first.
+ */
+public class TerrainResidency {
+
+    private final float evictionRadius;
+    private final long byteBudget;
+    //access ordered, the first entry is the chunk that was visible the longest time ago
+    private final LinkedHashMap<Vector2i, Terrain> residentTerrains = new LinkedHashMap<>(16, 0.75f, true);
+    @Getter
+    private long residentBytes = 0;
+    private int frame = 0;
+
+    public TerrainResidency(float evictionRadius, long byteBudget) {
+        this.evictionRadius = evictionRadius;
+        this.byteBudget = byteBudget;
+    }
+
+    //returns the terrain previously resident for the same chunk, which isn't freed yet
+    public Terrain add(Terrain terrain) {
+        //counts as visible until the next frame, otherwise a chunk uploaded while over budget would be evicted right away
+        terrain.lastVisibleFrame = frame;
+        Terrain replaced = residentTerrains.put(terrain.getChunkIndex(), terrain);
+        residentBytes += terrain.getByteSize();
+        if (replaced != null) residentBytes -= replaced.getByteSize();
+        return replaced;
+    }
+
+    public Terrain remove(Vector2i chunkIndex) {
+        Terrain removed = residentTerrains.remove(chunkIndex);
+        if (removed != null) residentBytes -= removed.getByteSize();
+        return removed;
+    }
+
+    public Collection<Terrain> getResidentTerrains() {
+        return residentTerrains.values();
+    }
+
+    public int getResidentChunkCount() {
+        return residentTerrains.size();
+    }
+
+    public void markVisible(Terrain terrain) {
+        touch(terrain.getChunkIndex());
+        terrain.lastVisibleFrame = frame;
+    }
+
+    //a lookup moves the entry to the end of the access order
+    private void touch(Vector2i chunkIndex) {
+        residentTerrains.get(chunkIndex);
+    }
+
+    //removes and returns every chunk that has to go, the caller frees them
+    public List<Terrain> evict(Vector3f cameraPosition) {
+        frame++;
+        List<Terrain> evicted = new ArrayList<>();
+        Iterator<Terrain> itr = residentTerrains.values().iterator();
+        while (itr.hasNext()) {
+            Terrain terrain = itr.next();
+            Vector2i chunkIndex = terrain.getChunkIndex();
+            float dx = (chunkIndex.x + 0.5f) * CHUNK_SIZE - cameraPosition.x;
+            float dz = (chunkIndex.y + 0.5f) * CHUNK_SIZE - cameraPosition.z;
+            boolean overBudget = residentBytes > byteBudget;
+            //chunks seen last frame are kept even when over budget, evicting them would only regenerate them right away
+            if (dx * dx + dz * dz > evictionRadius * evictionRadius || (overBudget && terrain.lastVisibleFrame < frame - 1)) {
+                itr.remove();
+                residentBytes -= terrain.getByteSize();
+                evicted.add(terrain);
+            }
+        }
+        return evicted;
+    }
+
+}
@@ -3,26 +3,29 @@ package de.thriemer.disguisedphoenix.terrain;
 import de.thriemer.disguisedphoenix.Entity;
 import de.thriemer.disguisedphoenix.Main;
 import de.thriemer.disguisedphoenix.rendering.CameraInformation;
+import de.thriemer.disguisedphoenix.terrain.generator.TerrainGenerator;
 import de.thriemer.disguisedphoenix.terrain.generator.WorldGenerator;
 import de.thriemer.engine.time.CPUTimerQuery;
+import de.thriemer.engine.time.CounterQuery;
+import de.thriemer.engine.world.CoherentFrustum;
+import de.thriemer.engine.world.FrustumMaskConsumer;
+import de.thriemer.engine.world.LinearOctree;
 import de.thriemer.engine.world.Octree;
-import de.thriemer.graphics.core.objects.Vao;
+import de.thriemer.engine.world.VisibilityPredicate;
+import de.thriemer.graphics.core.objects.MeshArena;
 import de.thriemer.graphics.loader.MeshInformation;
+import de.thriemer.graphics.loader.PackedMesh;
 import de.thriemer.graphics.modelinfo.Model;
-import de.thriemer.graphics.modelinfo.RenderInfo;
 import de.thriemer.graphics.particles.ParticleManager;
 import lombok.Getter;
+import lombok.Setter;
 import org.joml.FrustumIntersection;
 import org.joml.Matrix4f;
 import org.joml.Vector2i;
 import org.joml.Vector3f;
 
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.function.BiFunction;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Consumer;
 
 import static de.thriemer.disguisedphoenix.terrain.generator.TerrainGenerator.CHUNK_SIZE;
@@ -30,13 +33,45 @@ import static de.thriemer.disguisedphoenix.terrain.generator.TerrainGenerator.CH
 public class World {
 
     private final FrustumIntersection cullingHelper = new FrustumIntersection();
+    private CoherentFrustum[] multiCullingHelpers = new CoherentFrustum[0];
+    private final CounterQuery testedNodes = new CounterQuery("Culling Nodes Tested");
+    private final CounterQuery skippedNodes = new CounterQuery("Culling Nodes Skipped");
     @Getter
     private final Octree staticEntities;
-    private final List<Terrain> terrains = new ArrayList<>();
+    //chunks farther away than this are freed, they get regenerated or loaded from the cache when needed again
+    private static final float EVICTION_RADIUS = 3000;
+    private static final long TERRAIN_BYTE_BUDGET = 256L * 1024 * 1024;
+    @Getter
+    private final TerrainResidency terrainResidency = new TerrainResidency(EVICTION_RADIUS, TERRAIN_BYTE_BUDGET);
     public static int addedEntities = 0;
+    //entity batches placed by the generator threads, inserted into the octree on the main thread
+    private final Queue<List<Entity>> pendingEntityBatches = new ConcurrentLinkedQueue<>();
+    private final ChunkMeshCache meshCache;
+    //finished chunks are uploaded within this budget per frame, the rest waits for the next frames
+    private static final int UPLOAD_BYTES_PER_FRAME = 4 * 1024 * 1024;
+    private static final float UPLOAD_MILLIS_PER_FRAME = 2f;
+    //all terrain meshes share its buffers, so the visible chunks are drawn with one multi draw
+    @Getter
+    private final MeshArena terrainArena = new MeshArena(32 * 1024 * 1024, UPLOAD_BYTES_PER_FRAME);
+
+    private final float worldSize;
+    //the linear octree is a static snapshot and gets rebuilt from this list after entities were added
+    @Getter
+    @Setter
+    private boolean useLinearOctree = false;
+    private LinearOctree linearEntities;
+    //octree depth at which culling is split into fork join tasks, negative culls on the calling thread only
+    @Getter
+    @Setter
+    private int parallelCullingDepth = -1;
+    private final Set<Entity> allStaticEntities = new LinkedHashSet<>();
+    //removed from allStaticEntities together with the queued octree removals, so both always hold the same entities
+    private final List<Entity> pendingRemovals = new ArrayList<>();
 
-    public World(ParticleManager pm, float worldSize) {
+    public World(ParticleManager pm, float worldSize, ChunkMeshCache meshCache) {
         staticEntities = new Octree(new Vector3f(0), worldSize, worldSize, worldSize);
+        this.worldSize = worldSize;
+        this.meshCache = meshCache;
     }
 
     public List<Entity> getPossibleCollisions(Entity e) {
@@ -44,119 +79,239 @@ public class World {
         return new ArrayList<>();
     }
 
-    Set<Vector2i> addedTerrains = new HashSet<>();
+    private final ChunkScheduler chunkScheduler = new ChunkScheduler();
+    @Getter
+    private final ChunkUploadQueue uploadQueue = new ChunkUploadQueue(chunkScheduler, UPLOAD_BYTES_PER_FRAME, UPLOAD_MILLIS_PER_FRAME);
+    //radius around the camera meshed with full detail, every following ring doubles the cube size
+    private static final float FULL_DETAIL_RADIUS = 4 * CHUNK_SIZE;
+    //a chunk only switches its level of detail once it is this far past the ring border, so it doesn't flip back and forth
+    private static final float LOD_HYSTERESIS = CHUNK_SIZE / 2f;
 
-    List<Future<MeshInformation>> terrainFutures = new ArrayList<>();
+    private int getLod(int chunkX, int chunkY, Vector3f camPos) {
+        float dx = (chunkX + 0.5f) * CHUNK_SIZE - camPos.x;
+        float dz = (chunkY + 0.5f) * CHUNK_SIZE - camPos.z;
+        float distance = (float) Math.sqrt(dx * dx + dz * dz);
+        int lod = getRingLod(distance);
+        int currentLod = chunkScheduler.getLod(chunkX, chunkY);
+        if (currentLod >= 0 && currentLod != lod) {
+            float backOff = lod > currentLod ? -LOD_HYSTERESIS : LOD_HYSTERESIS;
+            if (getRingLod(distance + backOff) == currentLod) return currentLod;
+        }
+        return lod;
+    }
 
-    private ExecutorService executor = Executors.newWorkStealingPool();
-    int enqueued = 0;
+    private static int getRingLod(float distance) {
+        int lod = 0;
+        float ringRadius = FULL_DETAIL_RADIUS;
+        while (distance > ringRadius && lod < TerrainGenerator.LOD_LEVELS - 1) {
+            lod++;
+            ringRadius *= 2f;
+        }
+        return lod;
+    }
 
-    private List<Vector2i> getChunksInView(CameraInformation cameraInformation) {
+    //borders towards neighbours with a different level of detail, lods holds the area with a margin of one chunk
+    private static int getSkirtBorders(int[] lods, int rowLength, int index) {
+        int lod = lods[index];
+        int borders = 0;
+        if (lods[index - rowLength] != lod) borders |= TerrainGenerator.BORDER_MIN_X;
+        if (lods[index + rowLength] != lod) borders |= TerrainGenerator.BORDER_MAX_X;
+        if (lods[index - 1] != lod) borders |= TerrainGenerator.BORDER_MIN_Z;
+        if (lods[index + 1] != lod) borders |= TerrainGenerator.BORDER_MAX_Z;
+        return borders;
+    }
 
-        List<Vector2i> chunkList = new ArrayList<>();
+    void enqueChunks(CameraInformation cameraInformation, WorldGenerator generator) {
         Vector3f frustumCornerMin = new Vector3f(Float.MAX_VALUE);
         Vector3f frustumCornerMax = new Vector3f(-Float.MAX_VALUE);
+        Vector3f corner = new Vector3f();
         for (int i = 0; i < 8; i++) {
-            Vector3f corner = cameraInformation.getProjViewMatrix().frustumCorner(i, new Vector3f());
+            cameraInformation.getProjViewMatrix().frustumCorner(i, corner);
             frustumCornerMin.min(corner);
             frustumCornerMax.max(corner);
         }
+        cullingHelper.set(cameraInformation.getProjViewMatrix());
         int worldSizeChunks = (int) (Main.radius / CHUNK_SIZE);
-        for (int x = (int) Math.floor(frustumCornerMin.x / CHUNK_SIZE); x < Math.ceil(frustumCornerMax.x / CHUNK_SIZE); x++) {
-            for (int y = (int) Math.floor(frustumCornerMin.y / CHUNK_SIZE); y < Math.ceil(frustumCornerMax.y / CHUNK_SIZE); y++) {
-                Vector2i chunkIndex = new Vector2i(x, y);
-                if (!addedTerrains.contains(chunkIndex) &&
-                        chunkIndex.x >= -worldSizeChunks && chunkIndex.x <= worldSizeChunks &&
-                        chunkIndex.y >= -worldSizeChunks && chunkIndex.y <= worldSizeChunks
-                ) {
-                    chunkList.add(chunkIndex);
-                }
+        Vector3f camPos = cameraInformation.getCameraPosition();
+        chunkScheduler.beginFrame();
+        //the y component of a chunk index runs along the world z axis
+        int minX = Math.max(-worldSizeChunks, (int) Math.floor(frustumCornerMin.x / CHUNK_SIZE));
+        int maxX = Math.min(worldSizeChunks + 1, (int) Math.ceil(frustumCornerMax.x / CHUNK_SIZE));
+        int minY = Math.max(-worldSizeChunks, (int) Math.floor(frustumCornerMin.z / CHUNK_SIZE));
+        int maxY = Math.min(worldSizeChunks + 1, (int) Math.ceil(frustumCornerMax.z / CHUNK_SIZE));
+        if (maxX <= minX || maxY <= minY) return;
+        int rowLength = maxY - minY + 2;
+        int[] lods = new int[(maxX - minX + 2) * rowLength];
+        for (int x = minX - 1; x <= maxX; x++) {
+            for (int y = minY - 1; y <= maxY; y++) {
+                lods[(x - minX + 1) * rowLength + y - minY + 1] = getLod(x, y, camPos);
             }
         }
-        Vector3f camPos = cameraInformation.getCameraPosition();
-        Vector2i camPosInteger = new Vector2i((int) (camPos.x / CHUNK_SIZE), (int) (camPos.y / CHUNK_SIZE));
-        chunkList.sort(Comparator.comparingDouble(v -> v.distanceSquared(camPosInteger)));
-        return chunkList;
-    }
-
-    void enqueChunks(CameraInformation cameraInformation, WorldGenerator generator) {
-        if (enqueued < 10) {
-            List<Vector2i> inViewChunks = getChunksInView(cameraInformation);
-            for (Vector2i terrainIndex : inViewChunks) {
-                if (enqueued < 10) {
-                    addedTerrains.add(terrainIndex);
-                    terrainFutures.add(executor.submit(() -> generateChunk(generator, terrainIndex)));
-                    enqueued++;
-                } else {
-                    break;
-                }
+        for (int x = minX; x < maxX; x++) {
+            for (int y = minY; y < maxY; y++) {
+                float dx = (x + 0.5f) * CHUNK_SIZE - camPos.x;
+                float dz = (y + 0.5f) * CHUNK_SIZE - camPos.z;
+                boolean inFrustum = cullingHelper.testAab(x * CHUNK_SIZE, frustumCornerMin.y, y * CHUNK_SIZE,
+                        (x + 1) * CHUNK_SIZE, frustumCornerMax.y, (y + 1) * CHUNK_SIZE);
+                int index = (x - minX + 1) * rowLength + y - minY + 1;
+                chunkScheduler.request(x, y, lods[index], getSkirtBorders(lods, rowLength, index), inFrustum, dx * dx + dz * dz);
             }
         }
+        chunkScheduler.dispatch((chunkIndex, lod, skirtBorders, populate) -> generateChunk(generator, chunkIndex, lod, skirtBorders, populate));
     }
 
     CPUTimerQuery timerQuery = new CPUTimerQuery("updatePlayerPos");
 
     public void updatePlayerPos(CameraInformation cameraInformation, WorldGenerator generator) {
         timerQuery.startQuery();
+        integrateEntityBatches();
+        chunkScheduler.collectFinished(uploadQueue::add);
+        uploadQueue.upload(cameraInformation.getCameraPosition(), this::uploadChunk);
         enqueChunks(cameraInformation, generator);
-        Iterator<Future<MeshInformation>> itr = terrainFutures.iterator();
-        while (itr.hasNext()) {
-            Future<MeshInformation> singleMesh = itr.next();
-            if (singleMesh.isDone()) {
-                try {
-                    MeshInformation terrainMesh = singleMesh.get();
-                    if (terrainMesh.indicies.length > 0) {
-                        Vao vao = new Vao();
-                        vao.addDataAttributes(0, 4, terrainMesh.vertexPositions);
-                        vao.addDataAttributes(1, 4, terrainMesh.colors);
-                        vao.addIndicies(terrainMesh.indicies);
-                        Model terrainModel = new Model(new RenderInfo(vao), terrainMesh);
-                        terrains.add(new Terrain(terrainModel));
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
-                }
-                enqueued--;
-                itr.remove();
-            }
+        for (Terrain evicted : terrainResidency.evict(cameraInformation.getCameraPosition())) {
+            evicted.cleanUp(terrainArena);
+            chunkScheduler.evicted(evicted.getChunkIndex());
         }
         timerQuery.stopQuery();
     }
 
-    private MeshInformation generateChunk(WorldGenerator generator, Vector2i terrainIndex) {
-        MeshInformation generatedChunk = generator.createTerrainFor(terrainIndex);
-        generator.addEntities(generatedChunk, this::addEntity);
-        return generatedChunk;
+    private void uploadChunk(ChunkScheduler.ChunkJob job) {
+        PackedMesh terrainMesh = job.getMesh();
+        Vector2i chunkIndex = new Vector2i(job.getChunkIndex());
+        Terrain terrain = null;
+        if (terrainMesh.getIndexCount() > 0) {
+            Model terrainModel = new Model(terrainArena.add(terrainMesh), terrainMesh);
+            terrain = new Terrain(terrainModel, chunkIndex, job.getLod(), terrainMesh.getByteSize());
+        }
+        replaceTerrain(chunkIndex, terrain);
+        chunkScheduler.markUploaded(job);
+    }
+
+    private void replaceTerrain(Vector2i chunkIndex, Terrain terrain) {
+        Terrain replaced = terrain != null ? terrainResidency.add(terrain) : terrainResidency.remove(chunkIndex);
+        if (replaced != null) {
+            replaced.cleanUp(terrainArena);
+        }
     }
 
-    public List<Entity> getVisibleEntities(Matrix4f projViewMatrix, BiFunction<Vector3f, Float, Boolean> visibilityFunction) {
-        List<Entity> returnList = new LinkedList<>();
-        consumeVisibleEntities(projViewMatrix, visibilityFunction, returnList::add);
-        return returnList;
+    //runs on a generator thread, the mesh is packed there so the render thread only has to copy it
+    //the cache holds the meshes without skirts, they depend on the neighbours
+    private PackedMesh generateChunk(WorldGenerator generator, Vector2i terrainIndex, int lod, int skirtBorders, boolean populate) {
+        MeshInformation generatedChunk = meshCache.load(terrainIndex, lod);
+        if (generatedChunk == null) {
+            generatedChunk = generator.createTerrainFor(terrainIndex, lod);
+            meshCache.store(terrainIndex, lod, generatedChunk);
+        }
+        if (populate) {
+            List<Entity> batch = new ArrayList<>();
+            generator.addEntities(terrainIndex, generatedChunk, batch::add);
+            if (!batch.isEmpty()) addEntities(batch);
+        }
+        return new PackedMesh(TerrainGenerator.addSkirts(generatedChunk, terrainIndex, lod, skirtBorders));
     }
 
-    public void consumeVisibleEntities(Matrix4f projViewMatrix, BiFunction<Vector3f, Float, Boolean> visibilityFunction, Consumer<Entity> entityConsumer) {
+    public void consumeVisibleEntities(Matrix4f projViewMatrix, VisibilityPredicate visibility, Consumer<Entity> entityConsumer) {
         cullingHelper.set(projViewMatrix);
-        staticEntities.getAllVisibleEntities(cullingHelper, visibilityFunction, entityConsumer);
+        if (useLinearOctree) {
+            getLinearEntities().forEachVisible(cullingHelper, visibility, entityConsumer);
+        } else {
+            staticEntities.getAllVisibleEntities(cullingHelper, (v, r) -> visibility.isVisible(v.x, v.y, v.z, r), entityConsumer);
+        }
+    }
+
+    //a single traversal for several frusta, e.g. the camera and the shadow cascades
+    //only the first frustumCount entries of the arrays are used, so callers can keep them between frames
+    public void consumeVisibleEntities(Matrix4f[] projViewMatrices, VisibilityPredicate[] visibilities, int frustumCount, FrustumMaskConsumer entityConsumer) {
+        if (multiCullingHelpers.length < frustumCount) {
+            CoherentFrustum[] helpers = Arrays.copyOf(multiCullingHelpers, frustumCount);
+            for (int i = multiCullingHelpers.length; i < frustumCount; i++) helpers[i] = new CoherentFrustum();
+            multiCullingHelpers = helpers;
+        }
+        for (int i = 0; i < frustumCount; i++) {
+            multiCullingHelpers[i].set(projViewMatrices[i]);
+        }
+        int frustumMask = (1 << frustumCount) - 1;
+        if (useLinearOctree && parallelCullingDepth >= 0) {
+            getLinearEntities().forEachVisibleParallel(multiCullingHelpers, visibilities, frustumCount, parallelCullingDepth, entityConsumer);
+        } else if (useLinearOctree) {
+            getLinearEntities().forEachVisible(multiCullingHelpers, visibilities, frustumCount, entityConsumer);
+        } else if (parallelCullingDepth >= 0) {
+            staticEntities.getAllVisibleEntitiesParallel(multiCullingHelpers, visibilities, frustumMask, parallelCullingDepth, entityConsumer);
+        } else {
+            staticEntities.getAllVisibleEntities(multiCullingHelpers, visibilities, frustumMask, entityConsumer);
+        }
+        testedNodes.startQuery();
+        skippedNodes.startQuery();
+        for (int i = 0; i < frustumCount; i++) {
+            testedNodes.count(multiCullingHelpers[i].getTestedNodes());
+            skippedNodes.count(multiCullingHelpers[i].getSkippedNodes());
+        }
+        testedNodes.stopQuery();
+        skippedNodes.stopQuery();
+    }
+
+    private LinearOctree getLinearEntities() {
+        if (linearEntities == null) {
+            linearEntities = new LinearOctree(allStaticEntities, new Vector3f(-worldSize / 2f), worldSize);
+        }
+        return linearEntities;
     }
 
+    //must only be called from the main thread, use addEntities from worker threads
     public void addEntity(Entity e) {
         staticEntities.insert(e);
-        //  staticEntities.add(e);
+        allStaticEntities.add(e);
+        linearEntities = null;
         addedEntities++;
     }
 
+    //safe to call from any thread, the batch is inserted at the start of the next updatePlayerPos
+    public void addEntities(List<Entity> batch) {
+        pendingEntityBatches.add(batch);
+    }
+
+    //the octree changes are deferred to the start of the next updatePlayerPos, so culling always sees a consistent tree
+    public void updateEntity(Entity e) {
+        staticEntities.queueUpdate(e);
+    }
+
+    public void removeEntity(Entity e) {
+        staticEntities.queueRemoval(e);
+        pendingRemovals.add(e);
+    }
+
+    private void integrateEntityBatches() {
+        if (staticEntities.hasPendingChanges()) {
+            staticEntities.applyPendingChanges();
+            pendingRemovals.forEach(allStaticEntities::remove);
+            pendingRemovals.clear();
+            linearEntities = null;
+        }
+        if (pendingEntityBatches.isEmpty()) return;
+        //one bulk load for all chunks finished since the last frame
+        List<Entity> entities = new ArrayList<>();
+        List<Entity> batch;
+        while ((batch = pendingEntityBatches.poll()) != null) {
+            entities.addAll(batch);
+        }
+        staticEntities.insertAll(entities);
+        allStaticEntities.addAll(entities);
+        linearEntities = null;
+        addedEntities += entities.size();
+    }
+
     public Model[] getVisibleTerrains(Matrix4f projViewMatrix) {
         cullingHelper.set(projViewMatrix);
-        return terrains.stream()
+        List<Terrain> visibleTerrains = terrainResidency.getResidentTerrains().stream()
                 .filter(t -> cullingHelper.testAab(t.model.getMinAABB(), t.getModel().getMaxAABB()))
-                .map(Terrain::getModel).toArray(Model[]::new);
+                .toList();
+        visibleTerrains.forEach(terrainResidency::markVisible);
+        return visibleTerrains.stream().map(Terrain::getModel).toArray(Model[]::new);
     }
 
     public void shutdown() {
-        executor.shutdown();
+        chunkScheduler.shutdown();
+        meshCache.close();
     }
 
 }
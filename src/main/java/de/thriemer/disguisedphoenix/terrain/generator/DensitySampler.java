@@ -0,0 +1,9 @@
+package de.thriemer.disguisedphoenix.terrain.generator;
+
+public interface DensitySampler {
+    //fills target with sizeX*sizeY*sizeZ densities, y changes fastest, then z, then x
+    void sampleLattice(float[] target, float originX, float originY, float originZ, float step, int sizeX, int sizeY, int sizeZ);
+
+    //writes a lower and an upper bound for the lattice densities of every slice stacked above originY to bounds[2*slice] and bounds[2*slice+1]
+    void boundSlices(float[] bounds, float originX, float originY, float originZ, float step, int sizeX, int sizeZ, float sliceHeight, int sliceCount);
+}
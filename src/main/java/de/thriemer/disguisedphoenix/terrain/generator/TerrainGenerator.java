@@ -1,12 +1,12 @@
 package de.thriemer.disguisedphoenix.terrain.generator;
 
+import de.thriemer.engine.time.CounterQuery;
 import de.thriemer.graphics.loader.MeshInformation;
 import org.joml.Vector2i;
 import org.joml.Vector3f;
-import org.joml.Vector3i;
-import org.spongepowered.noise.module.source.RidgedMultiSimplex;
 
-import java.util.*;
+import java.util.Arrays;
+import java.util.Objects;
 import java.util.function.BinaryOperator;
 import java.util.function.Function;
 
@@ -16,67 +16,193 @@ public class TerrainGenerator {
     private static final float MESH_RESOLUTION = 4f;//every $MESH_RESOLUTION a vertex is placed
     private static final float ISO_LEVEL = 0.4f;
 
-    private static final Vector3f[] CUBE_CORNERS = new Vector3f[]{
-            new Vector3f(0, 0, 0),
-            new Vector3f(1, 0, 0),
-            new Vector3f(1, 0, 1),
-            new Vector3f(0, 0, 1),
-            new Vector3f(0, 1, 0),
-            new Vector3f(1, 1, 0),
-            new Vector3f(1, 1, 1),
-            new Vector3f(0, 1, 1)
+    public static final int DELTA_CHUNK = 5;
+    //every level of detail doubles the cube size of the previous one
+    public static final int LOD_LEVELS = 4;
+
+    private static final int CUBES_PER_AXIS = (int) (CHUNK_SIZE / MESH_RESOLUTION);
+    private static final int SAMPLES_PER_AXIS = CUBES_PER_AXIS + 1;
+    private static final int SLICE_COUNT = 2 * DELTA_CHUNK;
+    //samples along y for the whole vertical stack, neighbouring slices share one layer
+    private static final int STACK_SAMPLES_Y = SLICE_COUNT * CUBES_PER_AXIS + 1;
+
+    //lattice offsets of the cube corners, same order as used by the lookup table
+    private static final int[][] CUBE_CORNERS = new int[][]{
+            {0, 0, 0},
+            {1, 0, 0},
+            {1, 0, 1},
+            {0, 0, 1},
+            {0, 1, 0},
+            {1, 1, 0},
+            {1, 1, 1},
+            {0, 1, 1}
     };
 
-    public static final int DELTA_CHUNK=5;
+    //for every cube edge the lattice offset of its lower corner and the axis it runs along
+    private static final int[][] EDGE_ORIGINS = new int[MarchingCubesLookupTable.CUBE_EDGES.length][];
+
+    static {
+        for (int i = 0; i < EDGE_ORIGINS.length; i++) {
+            int[] a = CUBE_CORNERS[MarchingCubesLookupTable.CUBE_EDGES[i][0]];
+            int[] b = CUBE_CORNERS[MarchingCubesLookupTable.CUBE_EDGES[i][1]];
+            int axis = a[0] != b[0] ? 0 : (a[1] != b[1] ? 1 : 2);
+            EDGE_ORIGINS[i] = new int[]{Math.min(a[0], b[0]), Math.min(a[1], b[1]), Math.min(a[2], b[2]), axis};
+        }
+    }
+
+    //chunk borders a vertex can lie on, the chunk index y runs along z
+    public static final int BORDER_MIN_X = 1;
+    public static final int BORDER_MAX_X = 2;
+    public static final int BORDER_MIN_Z = 4;
+    public static final int BORDER_MAX_Z = 8;
+
+    //per chunk
+    private static final CounterQuery marchedSlices = new CounterQuery("Terrain Slices Marched");
+    private static final CounterQuery skippedSlices = new CounterQuery("Terrain Slices Skipped");
 
+    //the generator is shared by all worker threads, so every thread gets its own scratch memory
+    private final ThreadLocal<ChunkBuffers> chunkBuffers = ThreadLocal.withInitial(ChunkBuffers::new);
+
+    public static int getParameterHash() {
+        return Objects.hash(CHUNK_SIZE, MESH_RESOLUTION, ISO_LEVEL, DELTA_CHUNK, LOD_LEVELS);
+    }
+
+    /**
+     * Meshes the chunk with cubes of size MESH_RESOLUTION * 2^lod.
+     * The mesh doesn't depend on the neighbouring chunks, so it can be cached per level of detail, see {@link #addSkirts}.
+     */
+    public MeshInformation buildTerrain(Vector2i chunkIndex, int lod, Function<Vector2i, Float> baseHeightFunction, DensitySampler densitySampler, BinaryOperator<Vector3f> colorMapper) {
+        ChunkBuffers buffers = chunkBuffers.get();
+        buffers.reset(lod);
+        int samples = buffers.samples;
+        float step = buffers.step;
+        int baseHeight = (int) Math.floor(baseHeightFunction.apply(chunkIndex) / CHUNK_SIZE);
+        float originX = chunkIndex.x * CHUNK_SIZE;
+        float originZ = chunkIndex.y * CHUNK_SIZE;
+        float stackBottom = (baseHeight - DELTA_CHUNK) * CHUNK_SIZE;
+        float[] sliceBounds = buffers.sliceBounds;
+        densitySampler.boundSlices(sliceBounds, originX, stackBottom, originZ, step, samples, samples, CHUNK_SIZE, SLICE_COUNT);
+        int skipped = 0;
+        for (int slice = 0; slice < SLICE_COUNT; slice++) {
+            //entirely air or entirely solid, no cube of this slice can produce a triangle
+            if (sliceBounds[2 * slice + 1] <= ISO_LEVEL || sliceBounds[2 * slice] > ISO_LEVEL) {
+                skipped++;
+                continue;
+            }
+            float originY = stackBottom + slice * CHUNK_SIZE;
+            densitySampler.sampleLattice(buffers.densities, originX, originY, originZ, step, samples, samples, samples);
+            marchSlice(buffers, slice, originX, originY, originZ);
+        }
+        skippedSlices.record(skipped);
+        marchedSlices.record(SLICE_COUNT - skipped);
+        int vertexCount = buffers.vertexCount;
+        float[] vertices = Arrays.copyOf(buffers.vertices, vertexCount * 4);
+        float[] colors = new float[vertexCount * 4];
+        Vector3f position = buffers.samplePoint;
+        Vector3f unusedNormal = new Vector3f();
+        for (int i = 0; i < vertexCount; i++) {
+            position.set(vertices[i * 4], vertices[i * 4 + 1], vertices[i * 4 + 2]);
+            addColorToArray(i, colors, colorMapper.apply(position, unusedNormal));
+        }
+        int[] indicesArray = Arrays.copyOf(buffers.indices, buffers.indexCount);
+        return new MeshInformation(chunkIndex.toString() + "_" + lod, null, vertices, colors, indicesArray);
+    }
 
-    public MeshInformation buildTerrain(Vector2i chunkIndex,Function<Vector2i,Float> baseHeightFunction, Function<Vector3f, Float> noiseFunction, BinaryOperator<Vector3f> colorMapper) {
-        List<Vector3f> triangleVertices = new ArrayList<>();
-        Map<Vector3f, Float> cachedNoiseFunction = new HashMap<>();
-        List<Integer> indices = new ArrayList<>();
-        int baseHeight =(int)Math.floor(baseHeightFunction.apply(chunkIndex)/CHUNK_SIZE);
-        for(int chunkOffset=baseHeight-DELTA_CHUNK;chunkOffset<baseHeight+DELTA_CHUNK;chunkOffset++){
-        for (int x = 0; x < CHUNK_SIZE / MESH_RESOLUTION; x++) {
-            for (int y = 0; y < CHUNK_SIZE / MESH_RESOLUTION; y++) {
-                for (int z = 0; z < CHUNK_SIZE / MESH_RESOLUTION; z++) {
+    private void marchSlice(ChunkBuffers buffers, int slice, float originX, float originY, float originZ) {
+        float[] densities = buffers.densities;
+        float[] cornerValues = buffers.cornerValues;
+        int cubes = buffers.cubes;
+        float step = buffers.step;
+        for (int x = 0; x < cubes; x++) {
+            for (int y = 0; y < cubes; y++) {
+                for (int z = 0; z < cubes; z++) {
                     //single cube
                     int configuration = 0;
-                    float[] noiseValues = new float[8];
-                    Vector3f[] transformedVecs = new Vector3f[8];
                     for (int i = 0; i < 8; i++) {
-                        Vector3f translated = transform(CUBE_CORNERS[i], chunkIndex,chunkOffset, x, y, z);
-                        transformedVecs[i] = translated;
-                        float noiseValue = cachedNoiseFunction.computeIfAbsent(translated, noiseFunction);
-                        noiseValues[i] = noiseValue;
+                        int[] corner = CUBE_CORNERS[i];
+                        float noiseValue = densities[buffers.sampleIndex(x + corner[0], y + corner[1], z + corner[2])];
+                        cornerValues[i] = noiseValue;
                         if (noiseValue > ISO_LEVEL) {
                             configuration |= 1 << i;
                         }
                     }
                     int[] cubeLocalIndices = MarchingCubesLookupTable.INDICES[configuration];
-                    for (int i : cubeLocalIndices) {
-                        Vector3f transformed = transform(transformedVecs, noiseValues, MarchingCubesLookupTable.CUBE_EDGES[i]);
-                        if (!triangleVertices.contains(transformed)) {
-                            triangleVertices.add(transformed);
-                        }
-                        indices.add(triangleVertices.indexOf(transformed));
+                    for (int i = 0; i < cubeLocalIndices.length; i += 3) {
+                        int v0 = getEdgeVertex(buffers, cubeLocalIndices[i], slice, x, y, z, originX + x * step, originY + y * step, originZ + z * step);
+                        int v1 = getEdgeVertex(buffers, cubeLocalIndices[i + 1], slice, x, y, z, originX + x * step, originY + y * step, originZ + z * step);
+                        int v2 = getEdgeVertex(buffers, cubeLocalIndices[i + 2], slice, x, y, z, originX + x * step, originY + y * step, originZ + z * step);
+                        buffers.addTriangle(v0, v1, v2);
                     }
-                }}
+                }
             }
         }
-        float[] vertices = new float[triangleVertices.size() * 4];
-        float[] colors = new float[triangleVertices.size() * 4];
-        int[] indicesArray = indices.stream().mapToInt(i -> i).toArray();
-        int index = 0;
-        for (int i = 0; i < triangleVertices.size(); i++) {
-            Vector3f vec = triangleVertices.get(i);
-            Vector3f calculatedColor1 = colorMapper.apply(vec, new Vector3f());
-            addColorToArray(i, colors, calculatedColor1);
-            vertices[index++] = vec.x;
-            vertices[index++] = vec.y;
-            vertices[index++] = vec.z;
-            vertices[index++] = 0f;
-        }
-        return new MeshInformation(chunkIndex.toString(), null, vertices, colors, indicesArray);
+    }
+
+    private int getEdgeVertex(ChunkBuffers buffers, int edge, int slice, int x, int y, int z, float cubeX, float cubeY, float cubeZ) {
+        int[] edgeOrigin = EDGE_ORIGINS[edge];
+        int edgeX = x + edgeOrigin[0];
+        int edgeZ = z + edgeOrigin[2];
+        int axis = edgeOrigin[3];
+        int edgeId = buffers.edgeId(edgeX, slice * buffers.cubes + y + edgeOrigin[1], edgeZ, axis);
+        int vertex = buffers.edgeVertices[edgeId];
+        if (vertex < 0) {
+            vertex = addEdgeVertex(buffers, edge, cubeX, cubeY, cubeZ);
+            buffers.edgeVertices[edgeId] = vertex;
+        }
+        return vertex;
+    }
+
+    private int addEdgeVertex(ChunkBuffers buffers, int edge, float cubeX, float cubeY, float cubeZ) {
+        int li = MarchingCubesLookupTable.CUBE_EDGES[edge][0];
+        int ri = MarchingCubesLookupTable.CUBE_EDGES[edge][1];
+        float[] values = buffers.cornerValues;
+        float a = (ISO_LEVEL - values[li]) / (values[ri] - values[li]);
+        int[] left = CUBE_CORNERS[li];
+        int[] right = CUBE_CORNERS[ri];
+        float step = buffers.step;
+        return buffers.addVertex(
+                cubeX + (left[0] + (right[0] - left[0]) * a) * step,
+                cubeY + (left[1] + (right[1] - left[1]) * a) * step,
+                cubeZ + (left[2] + (right[2] - left[2]) * a) * step);
+    }
+
+    /**
+     * Hangs a skirt one coarser cube size deep below the given borders, meant for the borders to a neighbour with a different
+     * level of detail. It covers the cracks between the differently sampled surfaces. The skirt only faces away from the chunk,
+     * the neighbour adds its own skirt facing back, so the cracks are covered from both sides with back face culling enabled.
+     */
+    public static MeshInformation addSkirts(MeshInformation mesh, Vector2i chunkIndex, int lod, int skirtBorders) {
+        if (skirtBorders == 0) return mesh;
+        float step = MESH_RESOLUTION * (1 << lod);
+        float tolerance = step * 1e-3f;
+        float minX = chunkIndex.x * CHUNK_SIZE;
+        float minZ = chunkIndex.y * CHUNK_SIZE;
+        int vertexCount = mesh.vertexPositions.length / 4;
+        int[] vertexBorders = new int[vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            float x = mesh.vertexPositions[i * 4];
+            float z = mesh.vertexPositions[i * 4 + 2];
+            int borders = 0;
+            if (Math.abs(x - minX) < tolerance) borders |= BORDER_MIN_X;
+            if (Math.abs(x - minX - CHUNK_SIZE) < tolerance) borders |= BORDER_MAX_X;
+            if (Math.abs(z - minZ) < tolerance) borders |= BORDER_MIN_Z;
+            if (Math.abs(z - minZ - CHUNK_SIZE) < tolerance) borders |= BORDER_MAX_Z;
+            vertexBorders[i] = borders & skirtBorders;
+        }
+        SkirtBuilder skirt = new SkirtBuilder(mesh, 2f * step);
+        int[] indices = mesh.indicies;
+        for (int i = 0; i < indices.length; i += 3) {
+            for (int e = 0; e < 3; e++) {
+                int v0 = indices[i + e];
+                int v1 = indices[i + (e + 1) % 3];
+                //a triangle edge with both vertices on the same border is part of the outline of the chunk
+                int border = Integer.lowestOneBit(vertexBorders[v0] & vertexBorders[v1]);
+                if (border != 0) skirt.addQuad(v0, v1, border);
+            }
+        }
+        MeshInformation skirted = skirt.build(mesh.meshName);
+        skirted.collider = mesh.collider;
+        return skirted;
     }
 
     private void addColorToArray(int start, float[] array, Vector3f color) {
@@ -85,19 +211,136 @@ public class TerrainGenerator {
         array[start * 4 + 2] += color.z;
     }
 
+    private static class ChunkBuffers {
+
+        final float[] densities = new float[SAMPLES_PER_AXIS * SAMPLES_PER_AXIS * SAMPLES_PER_AXIS];
+        final float[] cornerValues = new float[8];
+        final float[] sliceBounds = new float[SLICE_COUNT * 2];
+        final int[] edgeVertices = new int[SAMPLES_PER_AXIS * STACK_SAMPLES_Y * SAMPLES_PER_AXIS * 3];
+        final Vector3f samplePoint = new Vector3f();
+        float[] vertices = new float[4096 * 4];
+        int vertexCount;
+        int[] indices = new int[4096 * 6];
+        int indexCount;
+        //lattice layout of the current level of detail
+        int cubes;
+        int samples;
+        int stackSamplesY;
+        float step;
 
-    private Vector3f transform(Vector3f input, Vector2i chunkIndex,int chunkOffset, int x, int y, int z) {
-        return new Vector3f(input).mul(MESH_RESOLUTION)
-                .add(chunkIndex.x * CHUNK_SIZE + x * MESH_RESOLUTION,
-                        chunkOffset * CHUNK_SIZE + y * MESH_RESOLUTION,
-                        chunkIndex.y * CHUNK_SIZE + z * MESH_RESOLUTION);
+        void reset(int lod) {
+            cubes = CUBES_PER_AXIS >> lod;
+            samples = cubes + 1;
+            stackSamplesY = SLICE_COUNT * cubes + 1;
+            step = MESH_RESOLUTION * (1 << lod);
+            Arrays.fill(edgeVertices, 0, samples * stackSamplesY * samples * 3, -1);
+            vertexCount = 0;
+            indexCount = 0;
+        }
+
+        //y is the fastest changing index so a column of samples lies next to each other
+        int sampleIndex(int x, int y, int z) {
+            return (x * samples + z) * samples + y;
+        }
+
+        //every lattice point owns the three edges pointing into positive x,y and z direction
+        int edgeId(int x, int stackY, int z, int axis) {
+            return ((x * stackSamplesY + stackY) * samples + z) * 3 + axis;
+        }
+
+        int addVertex(float x, float y, float z) {
+            if ((vertexCount + 1) * 4 > vertices.length) {
+                vertices = Arrays.copyOf(vertices, vertices.length * 2);
+            }
+            int offset = vertexCount * 4;
+            vertices[offset] = x;
+            vertices[offset + 1] = y;
+            vertices[offset + 2] = z;
+            vertices[offset + 3] = 0f;
+            return vertexCount++;
+        }
+
+        void addTriangle(int v0, int v1, int v2) {
+            if (indexCount + 3 > indices.length) {
+                indices = Arrays.copyOf(indices, indices.length * 2);
+            }
+            indices[indexCount++] = v0;
+            indices[indexCount++] = v1;
+            indices[indexCount++] = v2;
+        }
     }
 
-    private Vector3f transform(Vector3f[] vecs, float[] values, int[] edge) {
-        int li = edge[0];
-        int ri = edge[1];
-        float a = (ISO_LEVEL - values[li]) / (values[ri] - values[li]);
-        return new Vector3f(vecs[ri]).sub(vecs[li]).mul(a).add(vecs[li]);
+    //appends skirt quads to a copy of a finished mesh, every border vertex gets one skirt vertex below it
+    private static class SkirtBuilder {
+
+        final float depth;
+        float[] vertices;
+        float[] colors;
+        int[] indices;
+        final int[] skirtVertices;
+        int vertexCount;
+        int indexCount;
+
+        SkirtBuilder(MeshInformation mesh, float depth) {
+            this.depth = depth;
+            vertexCount = mesh.vertexPositions.length / 4;
+            indexCount = mesh.indicies.length;
+            vertices = Arrays.copyOf(mesh.vertexPositions, mesh.vertexPositions.length * 2);
+            colors = Arrays.copyOf(mesh.colors, mesh.colors.length * 2);
+            indices = Arrays.copyOf(mesh.indicies, indexCount * 2);
+            skirtVertices = new int[vertexCount];
+            Arrays.fill(skirtVertices, -1);
+        }
+
+        void addQuad(int v0, int v1, int border) {
+            float dx = vertices[v1 * 4] - vertices[v0 * 4];
+            float dz = vertices[v1 * 4 + 2] - vertices[v0 * 4 + 2];
+            //the face normal of (v0, v1, s1) is depth * (dz, 0, -dx), flip the edge if it points into the chunk
+            float outward = switch (border) {
+                case BORDER_MIN_X -> -dz;
+                case BORDER_MAX_X -> dz;
+                case BORDER_MIN_Z -> dx;
+                default -> -dx;
+            };
+            if (outward == 0) return;
+            if (outward < 0) {
+                int swap = v0;
+                v0 = v1;
+                v1 = swap;
+            }
+            int s0 = getSkirtVertex(v0);
+            int s1 = getSkirtVertex(v1);
+            addTriangle(v0, v1, s1);
+            addTriangle(v0, s1, s0);
+        }
+
+        int getSkirtVertex(int vertex) {
+            if (skirtVertices[vertex] < 0) {
+                if ((vertexCount + 1) * 4 > vertices.length) {
+                    vertices = Arrays.copyOf(vertices, vertices.length * 2);
+                    colors = Arrays.copyOf(colors, colors.length * 2);
+                }
+                System.arraycopy(vertices, vertex * 4, vertices, vertexCount * 4, 4);
+                System.arraycopy(colors, vertex * 4, colors, vertexCount * 4, 4);
+                vertices[vertexCount * 4 + 1] -= depth;
+                skirtVertices[vertex] = vertexCount++;
+            }
+            return skirtVertices[vertex];
+        }
+
+        void addTriangle(int v0, int v1, int v2) {
+            if (indexCount + 3 > indices.length) {
+                indices = Arrays.copyOf(indices, indices.length * 2);
+            }
+            indices[indexCount++] = v0;
+            indices[indexCount++] = v1;
+            indices[indexCount++] = v2;
+        }
+
+        MeshInformation build(String meshName) {
+            return new MeshInformation(meshName, null, Arrays.copyOf(vertices, vertexCount * 4),
+                    Arrays.copyOf(colors, vertexCount * 4), Arrays.copyOf(indices, indexCount));
+        }
     }
 
-}
\ No newline at end of file
+}
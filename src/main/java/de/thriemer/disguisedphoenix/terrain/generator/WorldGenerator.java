@@ -1,9 +1,11 @@
 package de.thriemer.disguisedphoenix.terrain.generator;
 
 import de.thriemer.disguisedphoenix.Entity;
+import de.thriemer.disguisedphoenix.terrain.ChunkMeshCache;
 import de.thriemer.disguisedphoenix.terrain.PositionProvider;
 import de.thriemer.disguisedphoenix.terrain.World;
 import de.thriemer.disguisedphoenix.terrain.generator.biomes.BiomeManager;
+import de.thriemer.engine.util.LongIntHashMap;
 import de.thriemer.engine.util.Maths;
 import de.thriemer.engine.util.ModelFileHandler;
 import de.thriemer.graphics.loader.MeshInformation;
@@ -16,16 +18,17 @@ import org.spongepowered.noise.module.source.Billow;
 import org.spongepowered.noise.module.source.RidgedMultiSimplex;
 import org.spongepowered.noise.module.source.Simplex;
 
+import java.nio.file.Paths;
 import java.util.Map;
-import java.util.Random;
+import java.util.Objects;
+import java.util.SplittableRandom;
 import java.util.function.Consumer;
 
-public class WorldGenerator {
+public class WorldGenerator implements DensitySampler {
     //TODO: BiomeConfig benutzen für noise funktion
     //TODO: biomeconfig für entity placement benutzen
     TerrainGenerator terrainGenerator;
 
-    Random random;
 
     Simplex moistureNoise = new Simplex();
     Billow bootstrapNoise = new Billow();
@@ -33,6 +36,10 @@ public class WorldGenerator {
     BiomeManager biomeManager = new BiomeManager();
 
     public static final int SEED = 2;
+    //increase whenever a change to the generation code alters the generated terrain
+    public static final int GENERATOR_VERSION = 3;
+    private static final float SIMPLEX_NOISE_SCALE = 0.002f;
+    private static final float WARP_SCALE = 0.001f;
     float radius;
     float max;
     float seaLevel;
@@ -45,18 +52,23 @@ public class WorldGenerator {
         bootstrapNoise.setSeed(SEED);
         max = scaleNoise(1f);
         seaLevel = scaleNoise(0.3f);
-        random = new Random(SEED);
     }
 
-    public MeshInformation createTerrainFor(Vector2i terrainIndex) {
-        return terrainGenerator.buildTerrain(terrainIndex, this::getBaseHeight, this::getNoiseFunction, this::getColor);
+    public MeshInformation createTerrainFor(Vector2i terrainIndex, int lod) {
+        return terrainGenerator.buildTerrain(terrainIndex, lod, this::getBaseHeight, this, this::getColor);
     }
 
     public World generateWorld(ParticleManager pm) {
-        World world = new World(pm, 4f * radius);
+        ChunkMeshCache meshCache = new ChunkMeshCache(Paths.get("cache", "terrain"), SEED, getParameterHash());
+        World world = new World(pm, 4f * radius, meshCache);
         return world;
     }
 
+    //the seed is part of the cache directory name, so caches of other seeds can be told apart from outdated ones
+    public int getParameterHash() {
+        return Objects.hash(GENERATOR_VERSION, radius, SIMPLEX_NOISE_SCALE, WARP_SCALE, TerrainGenerator.getParameterHash(), biomeManager.getConfigHash());
+    }
+
     public float getBaseHeight(Vector2i chunkIndex) {
         float size = TerrainGenerator.CHUNK_SIZE;
         return getNoiseFloor((chunkIndex.x + 0.5f) * size, (chunkIndex.y + 0.5f) * size);
@@ -67,16 +79,61 @@ public class WorldGenerator {
     }
 
     public float getNoiseFunction(Vector3f v) {
-        float SIMPLEX_NOISE_SCALE = 0.002f;
-        float WARP_SCALE = 0.001f;
+        return getDensity(v.x, v.y, v.z, getNoiseFloor(v.x, v.z));
+    }
+
+    /**
+     * Fills target with the densities of a regular lattice, y is the fastest changing index followed by z and x.
+     * The noise floor only depends on x and z, so it is evaluated once per column instead of once per sample.
+     */
+    @Override
+    public void sampleLattice(float[] target, float originX, float originY, float originZ, float step, int sizeX, int sizeY, int sizeZ) {
+        int index = 0;
+        for (int x = 0; x < sizeX; x++) {
+            float worldX = originX + x * step;
+            for (int z = 0; z < sizeZ; z++) {
+                float worldZ = originZ + z * step;
+                float floor = getNoiseFloor(worldX, worldZ);
+                for (int y = 0; y < sizeY; y++) {
+                    target[index++] = getDensity(worldX, originY + y * step, worldZ, floor);
+                }
+            }
+        }
+    }
 
-        float floor = getNoiseFloor(v.x, v.z);
-        float warpX =4f*(float) moistureNoise.get(WARP_SCALE*v.x,WARP_SCALE*v.y,WARP_SCALE*v.z);
-        float warpY =4f*(float) moistureNoise.get(WARP_SCALE*v.x+5.4f,WARP_SCALE*v.y-1.3f,WARP_SCALE*v.z+9.7f);
-        float warpZ =4f*(float) moistureNoise.get(WARP_SCALE*v.x-3.3f,WARP_SCALE*v.y+11.5f,WARP_SCALE*v.z-23.53f);
+    /**
+     * The density is a noise term bounded by the noise amplitude minus a term linear in the height above the noise floor.
+     * Taking the floor range over the lattice columns gives bounds that hold for every lattice sample of a slice,
+     * so slices whose bounds don't enclose the iso level can't contain any surface.
+     */
+    @Override
+    public void boundSlices(float[] bounds, float originX, float originY, float originZ, float step, int sizeX, int sizeZ, float sliceHeight, int sliceCount) {
+        float minFloor = Float.MAX_VALUE;
+        float maxFloor = -Float.MAX_VALUE;
+        for (int x = 0; x < sizeX; x++) {
+            for (int z = 0; z < sizeZ; z++) {
+                float floor = getNoiseFloor(originX + x * step, originZ + z * step);
+                minFloor = Math.min(minFloor, floor);
+                maxFloor = Math.max(maxFloor, floor);
+            }
+        }
+        float amplitude = (float) (bootstrapNoise.maxValue() / ridgedMultiSimplex.maxValue());
+        float heightScale = TerrainGenerator.DELTA_CHUNK * TerrainGenerator.CHUNK_SIZE;
+        for (int slice = 0; slice < sliceCount; slice++) {
+            float bottom = originY + slice * sliceHeight;
+            float top = bottom + sliceHeight;
+            bounds[2 * slice] = -amplitude - (top - minFloor) / heightScale;
+            bounds[2 * slice + 1] = amplitude - (bottom - maxFloor) / heightScale;
+        }
+    }
 
-        float noise = (float) (bootstrapNoise.get(v.x * SIMPLEX_NOISE_SCALE+warpX, v.y * SIMPLEX_NOISE_SCALE+warpY, v.z * SIMPLEX_NOISE_SCALE+warpZ)/ ridgedMultiSimplex.maxValue());
-        return noise+(1-((v.y-floor)/(TerrainGenerator.DELTA_CHUNK*TerrainGenerator.CHUNK_SIZE)+1));
+    private float getDensity(float x, float y, float z, float floor) {
+        float warpX = 4f * (float) moistureNoise.get(WARP_SCALE * x, WARP_SCALE * y, WARP_SCALE * z);
+        float warpY = 4f * (float) moistureNoise.get(WARP_SCALE * x + 5.4f, WARP_SCALE * y - 1.3f, WARP_SCALE * z + 9.7f);
+        float warpZ = 4f * (float) moistureNoise.get(WARP_SCALE * x - 3.3f, WARP_SCALE * y + 11.5f, WARP_SCALE * z - 23.53f);
+
+        float noise = (float) (bootstrapNoise.get(x * SIMPLEX_NOISE_SCALE + warpX, y * SIMPLEX_NOISE_SCALE + warpY, z * SIMPLEX_NOISE_SCALE + warpZ) / ridgedMultiSimplex.maxValue());
+        return noise + (1 - ((y - floor) / (TerrainGenerator.DELTA_CHUNK * TerrainGenerator.CHUNK_SIZE) + 1));
     }
 
     float realHeight = 4000;
@@ -124,8 +181,10 @@ public class WorldGenerator {
         biomeManager.save();
     }
 
-    public void addEntities(MeshInformation meshInformation, Consumer<Entity> entityInserter) {
-        PositionProvider positionProvider = new PositionProvider(meshInformation);
+    //every chunk draws from its own stream, so placement doesn't depend on which worker or in which order it runs
+    public void addEntities(Vector2i chunkIndex, MeshInformation meshInformation, Consumer<Entity> entityInserter) {
+        SplittableRandom random = new SplittableRandom(getChunkSeed(chunkIndex));
+        PositionProvider positionProvider = new PositionProvider(meshInformation, random.split());
         float area = positionProvider.getArea();
         area=0;
         while (area > 0) {
@@ -143,6 +202,10 @@ public class WorldGenerator {
         }
     }
 
+    private static long getChunkSeed(Vector2i chunkIndex) {
+        return SEED * 0x9E3779B97F4A7C15L ^ LongIntHashMap.key(chunkIndex.x, chunkIndex.y);
+    }
+
     private Entity rotateUpRight(Entity e, Vector3f normal) {
         Vector3f eulerAngles = new Vector3f();
         Quaternionf qf = new Quaternionf();
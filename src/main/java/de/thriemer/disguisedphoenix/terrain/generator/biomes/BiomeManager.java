@@ -21,6 +21,7 @@ import java.util.List;
 public class BiomeManager {
 
     BiomeInformation[] biomes;
+    private final int configHash;
     private static final float REFERENCE_HUMIDITY =400;
     private static final float BLENDING_DISTANCE = 0.01f;
 
@@ -31,7 +32,14 @@ public class BiomeManager {
     public BiomeManager() {
         //load biome configs
         Gson gson = new Gson();
-        biomes = gson.fromJson(loadBiomes("biomeInfo.json"), BiomeInformation[].class);
+        String biomeConfig = loadBiomes("biomeInfo.json");
+        configHash = biomeConfig.hashCode();
+        biomes = gson.fromJson(biomeConfig, BiomeInformation[].class);
+    }
+
+    //the terrain colors depend on the biome config, so cached terrain has to know about it
+    public int getConfigHash() {
+        return configHash;
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,39 @@
+package de.thriemer.engine.time;
+
+//records a per frame count instead of a duration, e.g. how many nodes got tested
+public class CounterQuery extends TimerQuery {
+
+    private int value;
+
+    public CounterQuery(String name) {
+        super(name);
+    }
+
+    @Override
+    public void startQuery() {
+        value = 0;
+    }
+
+    public void count(int amount) {
+        value += amount;
+    }
+
+    @Override
+    public void stopQuery() {
+        if (timerEnabled) {
+            addTime(value);
+        }
+    }
+
+    //for counters shared between threads, every caller counts on its own and records the whole sample
+    public void record(int count) {
+        if (timerEnabled) {
+            addTime(count);
+        }
+    }
+
+    @Override
+    protected String getUnit() {
+        return "";
+    }
+}
@@ -18,7 +18,7 @@ public abstract class TimerQuery {
     private final String name;
     private final List<Float> times = new ArrayList<>();
 
-    protected void addTime(float msTime) {
+    protected synchronized void addTime(float msTime) {
         times.add(msTime);
         min = Math.min(min, msTime);
         max = Math.max(max, msTime);
@@ -35,23 +35,28 @@ public abstract class TimerQuery {
 
     public abstract void stopQuery();
 
-    public void printResults() {
+    public synchronized void printResults() {
         if (timerEnabled && !times.isEmpty()) {
             int decPlaces = 3;
-            log.info("Results for {}", name);
-            log.info("Min: {}ms, Max: {}ms, AVG: {}ms", format(min, decPlaces), format(max, decPlaces), format(avg / count, decPlaces));
+            log.info("Results for {} ({} samples)", name, count);
+            String unit = getUnit();
+            log.info("Min: {}{}, Max: {}{}, AVG: {}{}", format(min, decPlaces), unit, format(max, decPlaces), unit, format(avg / count, decPlaces), unit);
             times.sort(Float::compare);
             int p50th = (int) (0.5f * times.size());
             int p90th = (int) (0.9f * times.size());
             int p95th = (int) (0.95f * times.size());
             int p99th = (int) (0.99f * times.size());
             int p995th = (int) (0.995f * times.size());
-            log.info("50%: {}ms, 90%: {}ms, 95%: {}ms, 99%: {}ms, 99.5%: {}ms",
-                    format(times.get(p50th), decPlaces), format(times.get(p90th), decPlaces), format(times.get(p95th),
-                            decPlaces), format(times.get(p99th), decPlaces), format(times.get(p995th), decPlaces));
+            log.info("50%: {}{}, 90%: {}{}, 95%: {}{}, 99%: {}{}, 99.5%: {}{}",
+                    format(times.get(p50th), decPlaces), unit, format(times.get(p90th), decPlaces), unit, format(times.get(p95th),
+                            decPlaces), unit, format(times.get(p99th), decPlaces), unit, format(times.get(p995th), decPlaces), unit);
         }
     }
 
+    protected String getUnit() {
+        return "ms";
+    }
+
     private String format(float v, int decimalPlaces) {
         return String.format("%." + decimalPlaces + "f", v);
     }
@@ -60,7 +65,7 @@ public abstract class TimerQuery {
         allTimers.forEach(TimerQuery::printResults);
     }
 
-    public void reset() {
+    public synchronized void reset() {
         times.clear();
         count = 0;
         min = Float.MAX_VALUE;
@@ -0,0 +1,117 @@
+package de.thriemer.engine.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long to int without boxing, removal shifts the following entries back
+ * so no tombstones are needed.
+ */
+public class LongIntHashMap {
+
+    private static final float MAX_LOAD = 0.5f;
+
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public LongIntHashMap() {
+        this(64);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    public static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    public int get(long key, int defaultValue) {
+        int slot = find(key);
+        return slot >= 0 ? values[slot] : defaultValue;
+    }
+
+    public void put(long key, int value) {
+        if (size + 1 > keys.length * MAX_LOAD) {
+            resize(keys.length * 2);
+        }
+        int slot = slot(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    public int remove(long key, int defaultValue) {
+        int slot = find(key);
+        if (slot < 0) return defaultValue;
+        int removed = values[slot];
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (used[next]) {
+            //move the entry into the hole if the hole lies between its ideal slot and its current one
+            int ideal = slot(keys[next]);
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[hole] = false;
+        size--;
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    private int find(long key) {
+        int slot = slot(key);
+        while (used[slot]) {
+            if (keys[slot] == key) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+}
@@ -60,13 +60,18 @@ public class Maths {
         return unsignedDistance + distanceInsideBox;
     }
 
-    private static final float NEEDED_SIZE_PER_LENGTH_UNIT = 0.000025f;
+    public static final float NEEDED_SIZE_PER_LENGTH_UNIT = 0.000025f;
 
     public static boolean couldBeVisible(Vector3f position, float radius, Vector3f cameraPos) {
         float distance = position.distanceSquared(cameraPos);
         return radius > distance * NEEDED_SIZE_PER_LENGTH_UNIT;
     }
 
+    public static boolean couldBeVisible(float x, float y, float z, float radius, Vector3f cameraPos) {
+        float distance = cameraPos.distanceSquared(x, y, z);
+        return radius > distance * NEEDED_SIZE_PER_LENGTH_UNIT;
+    }
+
 
     public static boolean aabbFullyContainsSphere(Vector3f min, Vector3f max, Vector3f center, float radius) {
         return min.x < center.x - radius && center.x + radius < max.x &&
@@ -5,8 +5,9 @@ import com.google.gson.GsonBuilder;
 import de.thriemer.engine.collision.Collider;
 import de.thriemer.engine.collision.CollisionShape;
 import de.thriemer.engine.collision.ConvexShape;
-import de.thriemer.graphics.core.objects.BufferObject;
+import de.thriemer.graphics.core.objects.StreamingBuffer;
 import de.thriemer.graphics.core.objects.Vao;
+import de.thriemer.graphics.core.renderer.InstanceFormat;
 import de.thriemer.graphics.loader.AssimpWrapper;
 import de.thriemer.graphics.loader.MeshInformation;
 import de.thriemer.graphics.modelinfo.Model;
@@ -101,7 +102,7 @@ public class ModelFileHandler {
         return rt;
     }
 
-    public static void loadModelsForMultiDraw(BufferObject matrixVbo, String... names) {
+    public static void loadModelsForMultiDraw(StreamingBuffer instanceBuffer, String... names) {
         int posWobbleANDColorShininessSize = 0;//both have equal size
         int indiciesSize = 0;
         List<MeshInformation> meshes = new ArrayList<>();
@@ -128,10 +129,7 @@ public class ModelFileHandler {
         }
         finishedVao.addDataAttributes(0, 4, combinedPosAndWobble);
         finishedVao.addDataAttributes(1, 4, combinedColorAndShininess);
-        finishedVao.addInstancedAttribute(matrixVbo, 2, 4, 16, 0);
-        finishedVao.addInstancedAttribute(matrixVbo, 3, 4, 16, 4);
-        finishedVao.addInstancedAttribute(matrixVbo, 4, 4, 16, 8);
-        finishedVao.addInstancedAttribute(matrixVbo, 5, 4, 16, 12);
+        InstanceFormat.ACTIVE.addInstancedAttributes(finishedVao, instanceBuffer);
         finishedVao.addIndicies(combinedIndicies);
         finishedVao.unbind();
     }
@@ -0,0 +1,97 @@
+package de.thriemer.engine.util;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Stable least significant digit radix sort for long keys. The parallel sort builds one histogram per block,
+ * the prefix sum over digit and block gives each block its own write offsets, so the scatter runs in parallel too.
+ * An instance sorts serially and keeps its scratch buffer, repeated per frame sorts don't allocate.
+ */
+public class RadixSort {
+
+    private static final int DIGIT_BITS = 8;
+    private static final int RADIX = 1 << DIGIT_BITS;
+    //below this the fork join overhead is bigger than the gain
+    private static final int MIN_BLOCK_SIZE = 1 << 14;
+
+    private final int[] histogram = new int[RADIX];
+    private long[] scratch = new long[0];
+
+    //sorts the first count keys by the bits [fromBit, toBit) only, keys equal in that range keep their order
+    public void sort(long[] keys, int count, int fromBit, int toBit) {
+        if (count < 2) return;
+        if (scratch.length < count) {
+            scratch = new long[keys.length];
+        }
+        long[] from = keys;
+        long[] to = scratch;
+        for (int shift = fromBit; shift < toBit; shift += DIGIT_BITS) {
+            int digitMask = (1 << Math.min(DIGIT_BITS, toBit - shift)) - 1;
+            Arrays.fill(histogram, 0);
+            for (int i = 0; i < count; i++) {
+                histogram[(int) (from[i] >>> shift) & digitMask]++;
+            }
+            //all keys share this digit, the pass wouldn't change anything
+            if (histogram[(int) (from[0] >>> shift) & digitMask] == count) continue;
+            int sum = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                int digitCount = histogram[digit];
+                histogram[digit] = sum;
+                sum += digitCount;
+            }
+            for (int i = 0; i < count; i++) {
+                to[histogram[(int) (from[i] >>> shift) & digitMask]++] = from[i];
+            }
+            long[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != keys) {
+            System.arraycopy(from, 0, keys, 0, count);
+        }
+    }
+
+    //sorts by the bits [fromBit, toBit) only, keys equal in that range keep their order
+    public static void parallelSort(long[] keys, int fromBit, int toBit) {
+        int count = keys.length;
+        int blocks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4, count / MIN_BLOCK_SIZE));
+        int blockSize = (count + blocks - 1) / blocks;
+        int[][] offsets = new int[blocks][RADIX];
+        long[] source = keys;
+        long[] target = new long[count];
+        for (int shift = fromBit; shift < toBit; shift += DIGIT_BITS) {
+            int digitShift = shift;
+            int digitMask = (1 << Math.min(DIGIT_BITS, toBit - shift)) - 1;
+            long[] from = source;
+            long[] to = target;
+            IntStream.range(0, blocks).parallel().forEach(b -> {
+                int[] histogram = offsets[b];
+                Arrays.fill(histogram, 0);
+                for (int i = b * blockSize, end = Math.min(count, i + blockSize); i < end; i++) {
+                    histogram[(int) (from[i] >>> digitShift) & digitMask]++;
+                }
+            });
+            int sum = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                for (int b = 0; b < blocks; b++) {
+                    int digitCount = offsets[b][digit];
+                    offsets[b][digit] = sum;
+                    sum += digitCount;
+                }
+            }
+            IntStream.range(0, blocks).parallel().forEach(b -> {
+                int[] offset = offsets[b];
+                for (int i = b * blockSize, end = Math.min(count, i + blockSize); i < end; i++) {
+                    to[offset[(int) (from[i] >>> digitShift) & digitMask]++] = from[i];
+                }
+            });
+            source = to;
+            target = from;
+        }
+        if (source != keys) {
+            System.arraycopy(source, 0, keys, 0, count);
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package de.thriemer.engine.util;
+
+import lombok.Getter;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * First fit allocator for ranges of a fixed size arena, e.g. slots of a gpu buffer.
+ * Free ranges are kept sorted by their start and merged with their neighbours when freed, so space can be reused.
+ */
+public class RangeAllocator {
+
+    //start -> length
+    private final TreeMap<Integer, Integer> freeRanges = new TreeMap<>();
+    @Getter
+    private int capacity;
+
+    public RangeAllocator(int capacity) {
+        this.capacity = capacity;
+        freeRanges.put(0, capacity);
+    }
+
+    //start of the range or -1 if no free range is big enough
+    public int allocate(int size) {
+        for (Map.Entry<Integer, Integer> free : freeRanges.entrySet()) {
+            int length = free.getValue();
+            if (length >= size) {
+                int start = free.getKey();
+                freeRanges.remove(start);
+                if (length > size) {
+                    freeRanges.put(start + size, length - size);
+                }
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    public void free(int start, int size) {
+        Map.Entry<Integer, Integer> next = freeRanges.higherEntry(start);
+        if (next != null && next.getKey() == start + size) {
+            size += next.getValue();
+            freeRanges.remove(next.getKey());
+        }
+        Map.Entry<Integer, Integer> previous = freeRanges.lowerEntry(start);
+        if (previous != null && previous.getKey() + previous.getValue() == start) {
+            start = previous.getKey();
+            size += previous.getValue();
+        }
+        freeRanges.put(start, size);
+    }
+
+    //allocated ranges keep their position
+    public void grow(int newCapacity) {
+        int oldCapacity = capacity;
+        capacity = newCapacity;
+        free(oldCapacity, newCapacity - oldCapacity);
+    }
+
+}
@@ -0,0 +1,100 @@
+package de.thriemer.engine.world;
+
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Frustum test that remembers the classification of every node together with its distance to the closest plane.
+ * As long as the orientation and projection stay the same the planes only shift, a node can't change its
+ * classification before the summed shift exceeds that distance. Any rotation starts a new epoch which invalidates
+ * every cached classification. Intersecting nodes are always tested again.
+ */
+public class CoherentFrustum {
+
+    public static final byte INSIDE = 0;
+    public static final byte INTERSECT = 1;
+    public static final byte OUTSIDE = 2;
+
+    //nx, ny, nz, d per plane, normalized and pointing inwards
+    private final float[] planes = new float[24];
+    private final Vector4f plane = new Vector4f();
+    private boolean initialized = false;
+    private int epoch = 0;
+    //sum of the largest plane shift of every frame since the epoch started
+    private float drift = 0;
+
+    //culling tasks may classify nodes concurrently
+    private final LongAdder testedNodes = new LongAdder();
+    private final LongAdder skippedNodes = new LongAdder();
+
+    public void set(Matrix4f projViewMatrix) {
+        boolean onlyShifted = initialized;
+        float frameDrift = 0;
+        for (int i = 0; i < 6; i++) {
+            projViewMatrix.frustumPlane(i, plane);
+            int p = i * 4;
+            onlyShifted &= planes[p] == plane.x && planes[p + 1] == plane.y && planes[p + 2] == plane.z;
+            frameDrift = Math.max(frameDrift, Math.abs(planes[p + 3] - plane.w));
+            planes[p] = plane.x;
+            planes[p + 1] = plane.y;
+            planes[p + 2] = plane.z;
+            planes[p + 3] = plane.w;
+        }
+        if (onlyShifted) {
+            drift += frameDrift;
+        } else {
+            epoch++;
+            drift = 0;
+        }
+        initialized = true;
+        testedNodes.reset();
+        skippedNodes.reset();
+    }
+
+    float[] getPlanes() {
+        return planes;
+    }
+
+    public int getTestedNodes() {
+        return testedNodes.intValue();
+    }
+
+    public int getSkippedNodes() {
+        return skippedNodes.intValue();
+    }
+
+    public byte classify(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, FrustumCache cache, int slot) {
+        byte cachedState = cache.states[slot];
+        if (cache.epochs[slot] == epoch && cachedState != INTERSECT && drift < cache.validUntil[slot]) {
+            skippedNodes.increment();
+            return cachedState;
+        }
+        testedNodes.increment();
+        //the plane that culled the node last time most likely culls it again
+        int firstPlane = cache.planes[slot];
+        float insideMargin = Float.MAX_VALUE;
+        boolean intersecting = false;
+        for (int k = 0; k < 6; k++) {
+            int i = firstPlane + k;
+            if (i >= 6) i -= 6;
+            int p = i * 4;
+            float nx = planes[p];
+            float ny = planes[p + 1];
+            float nz = planes[p + 2];
+            float maxDistance = nx * (nx < 0 ? minX : maxX) + ny * (ny < 0 ? minY : maxY) + nz * (nz < 0 ? minZ : maxZ) + planes[p + 3];
+            if (maxDistance < 0) {
+                return cache.store(slot, OUTSIDE, i, epoch, drift - maxDistance);
+            }
+            float minDistance = nx * (nx < 0 ? maxX : minX) + ny * (ny < 0 ? maxY : minY) + nz * (nz < 0 ? maxZ : minZ) + planes[p + 3];
+            if (minDistance < 0) {
+                intersecting = true;
+            } else {
+                insideMargin = Math.min(insideMargin, minDistance);
+            }
+        }
+        return intersecting ? cache.store(slot, INTERSECT, firstPlane, epoch, drift) : cache.store(slot, INSIDE, firstPlane, epoch, drift + insideMargin);
+    }
+
+}
@@ -0,0 +1,40 @@
+package de.thriemer.engine.world;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+//culls one subtree into its own batch, so no synchronisation is needed until the batches get merged
+class CullingTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    //assigned from the batches of the tree right before the tasks run
+    private transient VisibleBatch batch;
+    private final transient Consumer<FrustumMaskConsumer> subtreeTraversal;
+
+    CullingTask(Consumer<FrustumMaskConsumer> subtreeTraversal) {
+        this.subtreeTraversal = subtreeTraversal;
+    }
+
+    @Override
+    protected void compute() {
+        subtreeTraversal.accept(batch);
+    }
+
+    //the calling thread takes part in the work, the results are handed over in the order the tasks were created
+    static void invokeAndMerge(List<CullingTask> tasks, List<VisibleBatch> batches, FrustumMaskConsumer entityConsumer) {
+        while (batches.size() < tasks.size()) {
+            batches.add(new VisibleBatch());
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            tasks.get(i).batch = batches.get(i);
+        }
+        ForkJoinTask.invokeAll(tasks);
+        for (CullingTask task : tasks) {
+            task.batch.drainTo(entityConsumer);
+        }
+    }
+
+}
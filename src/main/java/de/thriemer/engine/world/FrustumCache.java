@@ -0,0 +1,37 @@
+package de.thriemer.engine.world;
+
+import java.util.Arrays;
+
+//classifications of the last frames, one slot per node and frustum
+public class FrustumCache {
+
+    byte[] states;
+    byte[] planes;
+    int[] epochs;
+    float[] validUntil;
+
+    public FrustumCache(int slots) {
+        states = new byte[slots];
+        planes = new byte[slots];
+        epochs = new int[slots];
+        validUntil = new float[slots];
+    }
+
+    public void ensureSize(int slots) {
+        if (slots > states.length) {
+            states = Arrays.copyOf(states, slots);
+            planes = Arrays.copyOf(planes, slots);
+            epochs = Arrays.copyOf(epochs, slots);
+            validUntil = Arrays.copyOf(validUntil, slots);
+        }
+    }
+
+    byte store(int slot, byte state, int plane, int epoch, float validUntil) {
+        states[slot] = state;
+        planes[slot] = (byte) plane;
+        epochs[slot] = epoch;
+        this.validUntil[slot] = validUntil;
+        return state;
+    }
+
+}
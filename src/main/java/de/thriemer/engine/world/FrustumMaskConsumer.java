@@ -0,0 +1,18 @@
+package de.thriemer.engine.world;
+
+import de.thriemer.disguisedphoenix.Entity;
+
+@FunctionalInterface
+public interface FrustumMaskConsumer {
+
+    //bit i of the mask is set if the entity is visible in frustum i
+    void accept(Entity entity, int frustumMask);
+
+    //all entities of a node at once, an entity can be reported several times with disjoint masks
+    default void acceptAll(InstanceRanges instances, int frustumMask) {
+        for (Entity e : instances.getEntities()) {
+            accept(e, frustumMask);
+        }
+    }
+
+}
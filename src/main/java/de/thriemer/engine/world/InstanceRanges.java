@@ -0,0 +1,70 @@
+package de.thriemer.engine.world;
+
+import de.thriemer.disguisedphoenix.Entity;
+import de.thriemer.graphics.core.renderer.InstanceFormat;
+import de.thriemer.graphics.modelinfo.RenderInfo;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instance data of the entities of one octree node in the active instance format, grouped by render info.
+ * Every group is a contiguous range, a renderer can copy it as a whole.
+ */
+public class InstanceRanges {
+
+    private final RenderInfo[] renderInfos;
+    //first instance of every render info, the last entry is the total count
+    private final int[] starts;
+    @Getter
+    private final float[] instanceData;
+    //same order as the instance data
+    @Getter
+    private final Entity[] entities;
+    @Getter
+    private final float smallestRadius;
+
+    InstanceRanges(List<Entity> nodeEntities) {
+        Map<RenderInfo, List<Entity>> grouped = new LinkedHashMap<>();
+        float smallest = Float.MAX_VALUE;
+        for (Entity e : nodeEntities) {
+            grouped.computeIfAbsent(e.getModel().getRenderInfo(), k -> new ArrayList<>()).add(e);
+            smallest = Math.min(smallest, e.getRadius());
+        }
+        smallestRadius = smallest;
+        renderInfos = grouped.keySet().toArray(new RenderInfo[0]);
+        starts = new int[renderInfos.length + 1];
+        InstanceFormat format = InstanceFormat.ACTIVE;
+        instanceData = new float[nodeEntities.size() * format.floatsPerInstance];
+        entities = new Entity[nodeEntities.size()];
+        int instance = 0;
+        for (int i = 0; i < renderInfos.length; i++) {
+            starts[i] = instance;
+            for (Entity e : grouped.get(renderInfos[i])) {
+                format.write(e, instanceData, instance * format.floatsPerInstance);
+                entities[instance++] = e;
+            }
+        }
+        starts[renderInfos.length] = instance;
+    }
+
+    public int getRangeCount() {
+        return renderInfos.length;
+    }
+
+    public RenderInfo getRenderInfo(int range) {
+        return renderInfos[range];
+    }
+
+    public int getFirstInstance(int range) {
+        return starts[range];
+    }
+
+    public int getInstanceCount(int range) {
+        return starts[range + 1] - starts[range];
+    }
+
+}
@@ -0,0 +1,291 @@
+package de.thriemer.engine.world;
+
+import de.thriemer.disguisedphoenix.Entity;
+import de.thriemer.engine.util.RadixSort;
+import org.joml.FrustumIntersection;
+import org.joml.Vector3f;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Static spatial index built in one go from a set of entities. Entities are sorted along a morton curve,
+ * so every node owns a contiguous range of them. Nodes are stored depth first in flat arrays,
+ * which again is morton order, a culled node is skipped by jumping to the end of its subtree.
+ */
+public class LinearOctree {
+
+    private static final int MAX_DEPTH = 10;
+    private static final int LEAF_SIZE = 32;
+
+    private final Entity[] entities;
+    private final SphereBounds entityBounds;
+
+    private int nodeCount = 0;
+    //min xyz and max xyz per node
+    private float[] nodeBounds;
+    //center xyz and radius per node
+    private float[] nodeSpheres;
+    //bit i is set if octant i has a child, leafs have an empty mask
+    private byte[] childMasks;
+    //index of the first node after this subtree
+    private int[] subtreeEnds;
+    private int[] entityStarts;
+    private int[] entityEnds;
+    private FrustumCache frustumCache;
+    private int cachedFrustumCount = 0;
+    //reused by every parallel traversal
+    private final VisibleBatch topLevelBatch = new VisibleBatch();
+    private final List<VisibleBatch> cullingBatches = new ArrayList<>();
+
+    public LinearOctree(Collection<Entity> entityCollection, Vector3f worldMin, float worldSize) {
+        int count = entityCollection.size();
+        Entity[] unsorted = entityCollection.toArray(new Entity[0]);
+        float[] unsortedSpheres = new float[count * 4];
+        //morton code in the upper, entity index in the lower half
+        long[] keys = new long[count];
+        float cellsPerUnit = (1 << MAX_DEPTH) / worldSize;
+        for (int i = 0; i < count; i++) {
+            Vector3f center = unsorted[i].getCenter();
+            unsortedSpheres[i * 4] = center.x;
+            unsortedSpheres[i * 4 + 1] = center.y;
+            unsortedSpheres[i * 4 + 2] = center.z;
+            unsortedSpheres[i * 4 + 3] = unsorted[i].getRadius();
+            int cellX = toCell((center.x - worldMin.x) * cellsPerUnit);
+            int cellY = toCell((center.y - worldMin.y) * cellsPerUnit);
+            int cellZ = toCell((center.z - worldMin.z) * cellsPerUnit);
+            keys[i] = ((long) morton(cellX, cellY, cellZ) << 32) | i;
+        }
+        RadixSort.parallelSort(keys, 32, 32 + 3 * MAX_DEPTH);
+        entities = new Entity[count];
+        entityBounds = new SphereBounds(count);
+        for (int i = 0; i < count; i++) {
+            int source = (int) keys[i];
+            entities[i] = unsorted[source];
+            entityBounds.add(unsortedSpheres[source * 4], unsortedSpheres[source * 4 + 1], unsortedSpheres[source * 4 + 2], unsortedSpheres[source * 4 + 3]);
+        }
+        int capacity = Math.max(16, count / LEAF_SIZE * 2);
+        nodeBounds = new float[capacity * 6];
+        nodeSpheres = new float[capacity * 4];
+        childMasks = new byte[capacity];
+        subtreeEnds = new int[capacity];
+        entityStarts = new int[capacity];
+        entityEnds = new int[capacity];
+        if (count > 0) {
+            build(keys, 0, count, 0);
+        }
+    }
+
+    private void build(long[] keys, int start, int end, int depth) {
+        int node = allocateNode();
+        entityStarts[node] = start;
+        entityEnds[node] = end;
+        computeBounds(node, start, end);
+        if (end - start > LEAF_SIZE && depth < MAX_DEPTH) {
+            int shift = 32 + (MAX_DEPTH - 1 - depth) * 3;
+            int childStart = start;
+            int mask = 0;
+            while (childStart < end) {
+                int octant = (int) (keys[childStart] >>> shift) & 7;
+                int childEnd = childStart + 1;
+                while (childEnd < end && ((int) (keys[childEnd] >>> shift) & 7) == octant) {
+                    childEnd++;
+                }
+                mask |= 1 << octant;
+                build(keys, childStart, childEnd, depth + 1);
+                childStart = childEnd;
+            }
+            childMasks[node] = (byte) mask;
+        }
+        subtreeEnds[node] = nodeCount;
+    }
+
+    public void forEachVisible(FrustumIntersection frustum, VisibilityPredicate visibility, Consumer<Entity> entityConsumer) {
+        int node = 0;
+        while (node < nodeCount) {
+            int b = node * 6;
+            int s = node * 4;
+            if (!frustum.testAab(nodeBounds[b], nodeBounds[b + 1], nodeBounds[b + 2], nodeBounds[b + 3], nodeBounds[b + 4], nodeBounds[b + 5]) ||
+                    !visibility.isVisible(nodeSpheres[s], nodeSpheres[s + 1], nodeSpheres[s + 2], nodeSpheres[s + 3])) {
+                node = subtreeEnds[node];
+                continue;
+            }
+            if (childMasks[node] == 0) {
+                for (int e = entityStarts[node]; e < entityEnds[node]; e++) {
+                    if (visibility.isVisible(entityBounds.x[e], entityBounds.y[e], entityBounds.z[e], entityBounds.r[e])) {
+                        entityConsumer.accept(entities[e]);
+                    }
+                }
+            }
+            node++;
+        }
+    }
+
+    //tests every node against all frusta at once, frusta a node is fully inside of or outside of aren't tested for its subtree
+    public void forEachVisible(CoherentFrustum[] frusta, VisibilityPredicate[] visibilities, int frustumCount, FrustumMaskConsumer entityConsumer) {
+        prepareFrustumCache(frustumCount);
+        traverse(frusta, visibilities, frustumCount, 0, nodeCount, getFrustumMask(frustumCount), 0, entityConsumer, -1, null);
+    }
+
+    //same result as the serial traversal, every subtree at splitDepth is culled by its own fork join task
+    public void forEachVisibleParallel(CoherentFrustum[] frusta, VisibilityPredicate[] visibilities, int frustumCount, int splitDepth, FrustumMaskConsumer entityConsumer) {
+        prepareFrustumCache(frustumCount);
+        List<CullingTask> tasks = new ArrayList<>();
+        traverse(frusta, visibilities, frustumCount, 0, nodeCount, getFrustumMask(frustumCount), 0, topLevelBatch, splitDepth, tasks);
+        topLevelBatch.drainTo(entityConsumer);
+        CullingTask.invokeAndMerge(tasks, cullingBatches, entityConsumer);
+    }
+
+    private void traverse(CoherentFrustum[] frusta, VisibilityPredicate[] visibilities, int frustumCount, int start, int end, int rootActiveMask, int rootInsideMask,
+                          FrustumMaskConsumer entityConsumer, int splitDepth, List<CullingTask> tasks) {
+        //per open subtree: its end, the frusta still visible and the frusta it's fully inside of
+        int[] stackEnds = new int[MAX_DEPTH + 2];
+        int[] stackActive = new int[MAX_DEPTH + 2];
+        int[] stackInside = new int[MAX_DEPTH + 2];
+        int depth = 0;
+        stackEnds[0] = end;
+        stackActive[0] = rootActiveMask;
+        stackInside[0] = rootInsideMask;
+        int node = start;
+        while (node < end) {
+            while (node >= stackEnds[depth]) depth--;
+            if (depth == splitDepth) {
+                int subtreeStart = node;
+                int subtreeEnd = subtreeEnds[node];
+                int subtreeActive = stackActive[depth];
+                int subtreeInside = stackInside[depth];
+                tasks.add(new CullingTask(batch -> traverse(frusta, visibilities, frustumCount, subtreeStart, subtreeEnd, subtreeActive, subtreeInside, batch, -1, null)));
+                node = subtreeEnd;
+                continue;
+            }
+            int insideMask = stackInside[depth];
+            int visibleMask = 0;
+            int b = node * 6;
+            int s = node * 4;
+            for (int mask = stackActive[depth]; mask != 0; mask &= mask - 1) {
+                int f = Integer.numberOfTrailingZeros(mask);
+                int bit = 1 << f;
+                if ((insideMask & bit) == 0) {
+                    byte result = frusta[f].classify(nodeBounds[b], nodeBounds[b + 1], nodeBounds[b + 2], nodeBounds[b + 3], nodeBounds[b + 4], nodeBounds[b + 5],
+                            frustumCache, node * frustumCount + f);
+                    if (result == CoherentFrustum.INSIDE) {
+                        insideMask |= bit;
+                    } else if (result == CoherentFrustum.OUTSIDE) {
+                        continue;
+                    }
+                }
+                if (visibilities[f].isVisible(nodeSpheres[s], nodeSpheres[s + 1], nodeSpheres[s + 2], nodeSpheres[s + 3])) {
+                    visibleMask |= bit;
+                }
+            }
+            if (visibleMask == 0) {
+                node = subtreeEnds[node];
+                continue;
+            }
+            if (childMasks[node] == 0) {
+                int entityStart = entityStarts[node];
+                int entityEnd = entityEnds[node];
+                int[] entityMasks = SphereCulling.getMasks(entityEnd - entityStart);
+                for (int mask = visibleMask; mask != 0; mask &= mask - 1) {
+                    int f = Integer.numberOfTrailingZeros(mask);
+                    //entities of a node inside the frustum don't need the plane tests
+                    float[] planes = (insideMask & (1 << f)) != 0 ? null : frusta[f].getPlanes();
+                    SphereCulling.cull(entityBounds, entityStart, entityEnd, planes, visibilities[f], 1 << f, entityMasks);
+                }
+                for (int e = entityStart; e < entityEnd; e++) {
+                    int entityMask = entityMasks[e - entityStart];
+                    if (entityMask != 0) entityConsumer.accept(entities[e], entityMask);
+                }
+            } else {
+                depth++;
+                stackEnds[depth] = subtreeEnds[node];
+                stackActive[depth] = visibleMask;
+                stackInside[depth] = insideMask & visibleMask;
+            }
+            node++;
+        }
+    }
+
+    private void prepareFrustumCache(int frustumCount) {
+        if (cachedFrustumCount != frustumCount) {
+            frustumCache = new FrustumCache(nodeCount * frustumCount);
+            cachedFrustumCount = frustumCount;
+        }
+    }
+
+    private static int getFrustumMask(int frustumCount) {
+        return frustumCount == 32 ? -1 : (1 << frustumCount) - 1;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getEntityCount() {
+        return entities.length;
+    }
+
+    private void computeBounds(int node, int start, int end) {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int e = start; e < end; e++) {
+            float r = entityBounds.r[e];
+            minX = Math.min(minX, entityBounds.x[e] - r);
+            minY = Math.min(minY, entityBounds.y[e] - r);
+            minZ = Math.min(minZ, entityBounds.z[e] - r);
+            maxX = Math.max(maxX, entityBounds.x[e] + r);
+            maxY = Math.max(maxY, entityBounds.y[e] + r);
+            maxZ = Math.max(maxZ, entityBounds.z[e] + r);
+        }
+        int b = node * 6;
+        nodeBounds[b] = minX;
+        nodeBounds[b + 1] = minY;
+        nodeBounds[b + 2] = minZ;
+        nodeBounds[b + 3] = maxX;
+        nodeBounds[b + 4] = maxY;
+        nodeBounds[b + 5] = maxZ;
+        float halfX = (maxX - minX) / 2f;
+        float halfY = (maxY - minY) / 2f;
+        float halfZ = (maxZ - minZ) / 2f;
+        int s = node * 4;
+        nodeSpheres[s] = minX + halfX;
+        nodeSpheres[s + 1] = minY + halfY;
+        nodeSpheres[s + 2] = minZ + halfZ;
+        nodeSpheres[s + 3] = (float) Math.sqrt(halfX * halfX + halfY * halfY + halfZ * halfZ);
+    }
+
+    private int allocateNode() {
+        if (nodeCount == childMasks.length) {
+            int capacity = nodeCount * 2;
+            nodeBounds = Arrays.copyOf(nodeBounds, capacity * 6);
+            nodeSpheres = Arrays.copyOf(nodeSpheres, capacity * 4);
+            childMasks = Arrays.copyOf(childMasks, capacity);
+            subtreeEnds = Arrays.copyOf(subtreeEnds, capacity);
+            entityStarts = Arrays.copyOf(entityStarts, capacity);
+            entityEnds = Arrays.copyOf(entityEnds, capacity);
+        }
+        return nodeCount++;
+    }
+
+    private static int toCell(float position) {
+        return Math.max(0, Math.min((1 << MAX_DEPTH) - 1, (int) position));
+    }
+
+    //interleaves the bits as ...zyxzyx, so the octant of a node at depth d is (code >> (MAX_DEPTH-1-d)*3) & 7
+    static int morton(int x, int y, int z) {
+        return spreadBits(x) | spreadBits(y) << 1 | spreadBits(z) << 2;
+    }
+
+    private static int spreadBits(int v) {
+        v &= 0x3ff;
+        v = (v | (v << 16)) & 0x030000ff;
+        v = (v | (v << 8)) & 0x0300f00f;
+        v = (v | (v << 4)) & 0x030c30c3;
+        v = (v | (v << 2)) & 0x09249249;
+        return v;
+    }
+
+}
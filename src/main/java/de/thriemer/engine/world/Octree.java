@@ -2,22 +2,26 @@ package de.thriemer.engine.world;
 
 import de.thriemer.disguisedphoenix.Entity;
 import de.thriemer.engine.util.Maths;
+import de.thriemer.engine.util.RadixSort;
 import org.joml.FrustumIntersection;
 import org.joml.Intersectionf;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 public class Octree {
 
     private static final float MIN_SIZE = 2f;
     private static final float LOOSENESS = 1.5f;
     private static final int FACE_SPLIT_COUNT = 1000;
+    //bits per axis of the morton codes used by the bulk load, deeper levels fall back to single inserts
+    private static final int MORTON_BITS = 10;
+    //a split node merges its children again once their faces drop below this, lower than the split count to not flip back and forth
+    private static final int FACE_COLLAPSE_COUNT = FACE_SPLIT_COUNT / 2;
     private int faces = 0;
     private final Vector3f centerPosition;
     private final float halfWidth;
@@ -31,8 +35,33 @@ public class Octree {
     private final Vector3f looseMin;
     private final Vector3f looseMax;
     private final List<Entity> entities = new ArrayList<>();
+    //bounding spheres of the entities above, in the same order
+    private final SphereBounds entityBounds = new SphereBounds(0);
+    //matrices of the entities above grouped for instanced rendering, rebuilt lazily after the node changed
+    private InstanceRanges instanceRanges;
+    private final FrustumCache frustumCache = new FrustumCache(1);
+    private final Octree parent;
+    //node every entity is stored in, shared by the whole tree
+    private final Map<Entity, Octree> owners;
+    //changes queued during the frame, applied by applyPendingChanges, only used by the root
+    private final Set<Entity> pendingUpdates;
+    private final Set<Entity> pendingRemovals;
+    //instance ranges of rebuilt nodes, renderers holding gpu copies of them can free those, only used by the root
+    private final List<InstanceRanges> releasedInstanceRanges;
+    //reused by every parallel traversal, created on the node it is started from
+    private VisibleBatch topLevelBatch;
+    private List<VisibleBatch> cullingBatches;
 
     public Octree(Vector3f centerPosition, float width, float height, float depth) {
+        this(null, new IdentityHashMap<>(), centerPosition, width, height, depth);
+    }
+
+    private Octree(Octree parent, Map<Entity, Octree> owners, Vector3f centerPosition, float width, float height, float depth) {
+        this.parent = parent;
+        this.owners = owners;
+        pendingUpdates = parent == null ? Collections.newSetFromMap(new IdentityHashMap<>()) : null;
+        pendingRemovals = parent == null ? Collections.newSetFromMap(new IdentityHashMap<>()) : null;
+        releasedInstanceRanges = parent == null ? new ArrayList<>() : null;
         this.centerPosition = centerPosition;
         this.halfWidth = width / 2f;
         this.halfHeight = height / 2f;
@@ -56,18 +85,223 @@ public class Octree {
                 }
             }
             if (stillFree) {
-                faces += e.getModel().getRenderInfo().getIndicesCount() / 3;
-                entities.add(e);
+                addEntity(e);
             }
         } else {
-            faces += e.getModel().getRenderInfo().getIndicesCount() / 3;
-            entities.add(e);
+            addEntity(e);
         }
         if (faces > FACE_SPLIT_COUNT && !hasChildren && !hasMinSize()) {
             splitTree();
         }
     }
 
+    private void addEntity(Entity e) {
+        Vector3f center = e.getCenter();
+        addEntity(e, center.x, center.y, center.z, e.getRadius());
+    }
+
+    private void addEntity(Entity e, float centerX, float centerY, float centerZ, float radius) {
+        faces += getFaces(e);
+        entities.add(e);
+        entityBounds.add(centerX, centerY, centerZ, radius);
+        owners.put(e, this);
+        releaseInstanceRanges();
+    }
+
+    public boolean remove(Entity e) {
+        Octree owner = owners.remove(e);
+        if (owner == null) return false;
+        owner.removeEntity(e);
+        owner.collapseIfSparse();
+        return true;
+    }
+
+    //updates the bounds in place as long as the entity stays within the loose bounds of its node, otherwise it moves up until it fits
+    public void update(Entity e) {
+        Octree owner = owners.get(e);
+        if (owner == null) return;
+        if (owner.parent == null || owner.containsLoosely(e)) {
+            owner.entityBounds.set(owner.entities.indexOf(e), e.getCenter(), e.getRadius());
+            owner.releaseInstanceRanges();
+            return;
+        }
+        owner.removeEntity(e);
+        Octree target = owner.parent;
+        while (target.parent != null && !target.containsLoosely(e)) {
+            target = target.parent;
+        }
+        target.insert(e);
+        owner.collapseIfSparse();
+    }
+
+    //deferred versions of update and remove, applied at once by applyPendingChanges
+    public void queueUpdate(Entity e) {
+        pendingUpdates.add(e);
+    }
+
+    public void queueRemoval(Entity e) {
+        pendingRemovals.add(e);
+        pendingUpdates.remove(e);
+    }
+
+    public boolean hasPendingChanges() {
+        return !pendingUpdates.isEmpty() || !pendingRemovals.isEmpty();
+    }
+
+    public void applyPendingChanges() {
+        for (Entity e : pendingRemovals) {
+            remove(e);
+        }
+        for (Entity e : pendingUpdates) {
+            update(e);
+        }
+        pendingRemovals.clear();
+        pendingUpdates.clear();
+    }
+
+    private void removeEntity(Entity e) {
+        int index = entities.indexOf(e);
+        int last = entities.size() - 1;
+        entities.set(index, entities.get(last));
+        entities.remove(last);
+        entityBounds.swapRemove(index);
+        releaseInstanceRanges();
+        faces -= getFaces(e);
+    }
+
+    private void collapseIfSparse() {
+        Octree node = hasChildren ? this : parent;
+        while (node != null && node.hasChildren && node.countFaces(FACE_COLLAPSE_COUNT) <= FACE_COLLAPSE_COUNT) {
+            node.collapse();
+            node = node.parent;
+        }
+    }
+
+    //faces of the whole subtree, stops counting once the limit is exceeded
+    private int countFaces(int limit) {
+        int count = faces;
+        if (hasChildren) {
+            for (int i = 0; i < nodes.length && count <= limit; i++) {
+                count += nodes[i].countFaces(limit - count);
+            }
+        }
+        return count;
+    }
+
+    private void collapse() {
+        List<Entity> subtreeEntities = new ArrayList<>();
+        for (Octree node : nodes) {
+            node.collectEntities(subtreeEntities);
+        }
+        hasChildren = false;
+        nodes = null;
+        for (Entity e : subtreeEntities) {
+            addEntity(e);
+        }
+    }
+
+    //the node is discarded afterwards
+    private void collectEntities(List<Entity> target) {
+        target.addAll(entities);
+        releaseInstanceRanges();
+        if (hasChildren) {
+            for (Octree node : nodes) {
+                node.collectEntities(target);
+            }
+        }
+    }
+
+    private static int getFaces(Entity e) {
+        return e.getModel().getRenderInfo().getIndicesCount() / 3;
+    }
+
+    //not thread safe, batches produced on other threads have to be handed over to the thread traversing the tree
+    /**
+     * Bulk load, the batch is sorted along a morton curve relative to this node, so every child receives a contiguous range.
+     * Leaves get filled directly instead of splitting and reinserting again and again like single inserts do.
+     */
+    public void insertAll(List<Entity> batch) {
+        int count = batch.size();
+        Entity[] unsorted = batch.toArray(new Entity[0]);
+        //morton code in the upper, batch index in the lower half
+        long[] keys = new long[count];
+        float[] unsortedSpheres = new float[count * 4];
+        float cellsX = (1 << MORTON_BITS) / (2f * halfWidth);
+        float cellsY = (1 << MORTON_BITS) / (2f * halfHeight);
+        float cellsZ = (1 << MORTON_BITS) / (2f * halfDepth);
+        IntStream.range(0, count).parallel().forEach(i -> {
+            Vector3f center = unsorted[i].getCenter();
+            unsortedSpheres[i * 4] = center.x;
+            unsortedSpheres[i * 4 + 1] = center.y;
+            unsortedSpheres[i * 4 + 2] = center.z;
+            unsortedSpheres[i * 4 + 3] = unsorted[i].getRadius();
+            int cellX = toCell((center.x - min.x) * cellsX);
+            int cellY = toCell((center.y - min.y) * cellsY);
+            int cellZ = toCell((center.z - min.z) * cellsZ);
+            //swapped axes so the octant bits match the child index x*4+y*2+z
+            keys[i] = ((long) LinearOctree.morton(cellZ, cellY, cellX) << 32) | i;
+        });
+        RadixSort.parallelSort(keys, 32, 32 + 3 * MORTON_BITS);
+        Entity[] sorted = new Entity[count];
+        int[] codes = new int[count];
+        SphereBounds spheres = new SphereBounds(count);
+        for (int i = 0; i < count; i++) {
+            int source = (int) keys[i];
+            sorted[i] = unsorted[source];
+            codes[i] = (int) (keys[i] >>> 32);
+            spheres.add(unsortedSpheres[source * 4], unsortedSpheres[source * 4 + 1], unsortedSpheres[source * 4 + 2], unsortedSpheres[source * 4 + 3]);
+        }
+        insertSorted(sorted, codes, spheres, 0, count, 0);
+    }
+
+    private void insertSorted(Entity[] sorted, int[] codes, SphereBounds spheres, int start, int end, int level) {
+        if (!hasChildren) {
+            int rangeFaces = 0;
+            for (int i = start; i < end; i++) {
+                rangeFaces += getFaces(sorted[i]);
+            }
+            if (faces + rangeFaces <= FACE_SPLIT_COUNT || hasMinSize()) {
+                for (int i = start; i < end; i++) {
+                    addEntity(sorted[i], spheres.x[i], spheres.y[i], spheres.z[i], spheres.r[i]);
+                }
+                return;
+            }
+        }
+        if (level >= MORTON_BITS) {
+            //the codes can't tell the octants apart anymore
+            for (int i = start; i < end; i++) {
+                insert(sorted[i]);
+            }
+            return;
+        }
+        if (!hasChildren) {
+            splitTree();
+        }
+        int shift = 3 * (MORTON_BITS - 1 - level);
+        int i = start;
+        while (i < end) {
+            int octant = (codes[i] >>> shift) & 7;
+            Octree node = nodes[octant];
+            int rangeStart = i;
+            int fitting = i;
+            for (; i < end && ((codes[i] >>> shift) & 7) == octant; i++) {
+                if (node.containsLoosely(spheres.x[i], spheres.y[i], spheres.z[i], spheres.r[i])) {
+                    sorted[fitting] = sorted[i];
+                    codes[fitting] = codes[i];
+                    spheres.copy(i, fitting);
+                    fitting++;
+                } else {
+                    addEntity(sorted[i], spheres.x[i], spheres.y[i], spheres.z[i], spheres.r[i]);
+                }
+            }
+            node.insertSorted(sorted, codes, spheres, rangeStart, fitting, level + 1);
+        }
+    }
+
+    private static int toCell(float position) {
+        return Math.max(0, Math.min((1 << MORTON_BITS) - 1, (int) position));
+    }
+
     private boolean contains(Vector3f center) {
         return Maths.pointInAabb(min, max, center);
     }
@@ -78,6 +312,8 @@ public class Octree {
         //cache all the entities to not end up in an endless loop
         List<Entity> toReinsert = new ArrayList<>(entities);
         entities.clear();
+        entityBounds.clear();
+        releaseInstanceRanges();
         float quarterWidth = halfWidth / 2f;
         float quarterHeight = halfHeight / 2f;
         float quarterDepth = halfDepth / 2f;
@@ -87,7 +323,7 @@ public class Octree {
                 float timesY = y * 2f - 1f;
                 for (int z = 0; z <= 1; z++) {
                     float timesZ = z * 2f - 1f;
-                    nodes[x * 4 + y * 2 + z] = new Octree(new Vector3f(centerPosition).add(quarterWidth * timesX, quarterHeight * timesY, quarterDepth * timesZ), halfWidth, halfHeight, halfDepth);
+                    nodes[x * 4 + y * 2 + z] = new Octree(this, owners, new Vector3f(centerPosition).add(quarterWidth * timesX, quarterHeight * timesY, quarterDepth * timesZ), halfWidth, halfHeight, halfDepth);
                 }
             }
         }
@@ -101,8 +337,7 @@ public class Octree {
     public void getAllVisibleEntities(FrustumIntersection frustum, BiFunction<Vector3f, Float, Boolean> visibilityFunction, Consumer<Entity> entityConsumer) {
         if ((hasChildren || !entities.isEmpty()) && frustum.testAab(looseMin, looseMax) && visibilityFunction.apply(centerPosition, radius)) {
             if (!entities.isEmpty()) {
-                ArrayList<Entity> shallowCopy = new ArrayList<>(entities);
-                for (Entity e : shallowCopy) {
+                for (Entity e : entities) {
                     if (visibilityFunction.apply(e.getCenter(), e.getRadius()))
                         entityConsumer.accept(e);
                 }
@@ -115,6 +350,109 @@ public class Octree {
         }
     }
 
+    //tests every node against all frusta at once, frusta the node is fully inside of or outside of aren't tested further down
+    public void getAllVisibleEntities(CoherentFrustum[] frusta, VisibilityPredicate[] visibilities, int activeMask, FrustumMaskConsumer entityConsumer) {
+        collectVisible(frusta, visibilities, activeMask, 0, entityConsumer, -1, null);
+    }
+
+    //same result as the serial traversal, every subtree at splitDepth is culled by its own fork join task
+    public void getAllVisibleEntitiesParallel(CoherentFrustum[] frusta, VisibilityPredicate[] visibilities, int activeMask, int splitDepth, FrustumMaskConsumer entityConsumer) {
+        if (cullingBatches == null) {
+            topLevelBatch = new VisibleBatch();
+            cullingBatches = new ArrayList<>();
+        }
+        List<CullingTask> tasks = new ArrayList<>();
+        collectVisible(frusta, visibilities, activeMask, 0, topLevelBatch, splitDepth, tasks);
+        topLevelBatch.drainTo(entityConsumer);
+        CullingTask.invokeAndMerge(tasks, cullingBatches, entityConsumer);
+    }
+
+    private void collectVisible(CoherentFrustum[] frusta, VisibilityPredicate[] visibilities, int activeMask, int insideMask, FrustumMaskConsumer entityConsumer, int splitDepth, List<CullingTask> tasks) {
+        if (!hasChildren && entities.isEmpty()) return;
+        if (splitDepth == 0) {
+            int subtreeInsideMask = insideMask;
+            tasks.add(new CullingTask(batch -> collectVisible(frusta, visibilities, activeMask, subtreeInsideMask, batch, -1, null)));
+            return;
+        }
+        int visibleMask = 0;
+        for (int mask = activeMask; mask != 0; mask &= mask - 1) {
+            int f = Integer.numberOfTrailingZeros(mask);
+            int bit = 1 << f;
+            if ((insideMask & bit) == 0) {
+                frustumCache.ensureSize(f + 1);
+                byte result = frusta[f].classify(looseMin.x, looseMin.y, looseMin.z, looseMax.x, looseMax.y, looseMax.z, frustumCache, f);
+                if (result == CoherentFrustum.INSIDE) {
+                    insideMask |= bit;
+                } else if (result == CoherentFrustum.OUTSIDE) {
+                    continue;
+                }
+            }
+            if (visibilities[f].isVisible(centerPosition.x, centerPosition.y, centerPosition.z, radius)) {
+                visibleMask |= bit;
+            }
+        }
+        if (visibleMask == 0) return;
+        int entityCount = entities.size();
+        if (entityCount > 0) {
+            //frusta the node is inside of and whose size test every entity passes get all the entities at once
+            int batchMask = 0;
+            if ((visibleMask & insideMask) != 0) {
+                InstanceRanges instances = getInstanceRanges();
+                for (int mask = visibleMask & insideMask; mask != 0; mask &= mask - 1) {
+                    int f = Integer.numberOfTrailingZeros(mask);
+                    if (visibilities[f].allVisible(centerPosition.x, centerPosition.y, centerPosition.z, LOOSENESS * radius, instances.getSmallestRadius())) {
+                        batchMask |= 1 << f;
+                    }
+                }
+                if (batchMask != 0) entityConsumer.acceptAll(instances, batchMask);
+            }
+            cullEntities(frusta, visibilities, visibleMask & ~batchMask, insideMask, entityConsumer);
+        }
+        if (hasChildren) {
+            for (Octree node : nodes) {
+                node.collectVisible(frusta, visibilities, visibleMask, insideMask & visibleMask, entityConsumer, splitDepth - 1, tasks);
+            }
+        }
+    }
+
+    public void drainReleasedInstanceRanges(Consumer<InstanceRanges> consumer) {
+        releasedInstanceRanges.forEach(consumer);
+        releasedInstanceRanges.clear();
+    }
+
+    //the ranges get rebuilt lazily on the next traversal
+    private void releaseInstanceRanges() {
+        if (instanceRanges == null) return;
+        Octree root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        root.releasedInstanceRanges.add(instanceRanges);
+        instanceRanges = null;
+    }
+
+    private InstanceRanges getInstanceRanges() {
+        if (instanceRanges == null) {
+            instanceRanges = new InstanceRanges(entities);
+        }
+        return instanceRanges;
+    }
+
+    private void cullEntities(CoherentFrustum[] frusta, VisibilityPredicate[] visibilities, int visibleMask, int insideMask, FrustumMaskConsumer entityConsumer) {
+        if (visibleMask == 0) return;
+        int entityCount = entities.size();
+        int[] entityMasks = SphereCulling.getMasks(entityCount);
+        for (int mask = visibleMask; mask != 0; mask &= mask - 1) {
+            int f = Integer.numberOfTrailingZeros(mask);
+            //entities of a node inside the frustum don't need the plane tests
+            float[] planes = (insideMask & (1 << f)) != 0 ? null : frusta[f].getPlanes();
+            SphereCulling.cull(entityBounds, 0, entityCount, planes, visibilities[f], 1 << f, entityMasks);
+        }
+        for (int i = 0; i < entityCount; i++) {
+            if (entityMasks[i] != 0) entityConsumer.accept(entities.get(i), entityMasks[i]);
+        }
+    }
+
     public void collectStats(int level, Map<Integer, Integer> levelInfo) {
         int size = entities.size();
         if (levelInfo.containsKey(level)) {
@@ -137,6 +475,12 @@ public class Octree {
         return Maths.aabbFullyContainsSphere(looseMin, looseMax, e.getCenter(), e.getRadius());
     }
 
+    private boolean containsLoosely(float centerX, float centerY, float centerZ, float radius) {
+        return looseMin.x < centerX - radius && centerX + radius < looseMax.x &&
+                looseMin.y < centerY - radius && centerY + radius < looseMax.y &&
+                looseMin.z < centerZ - radius && centerZ + radius < looseMax.z;
+    }
+
     private boolean hasMinSize() {
         return halfWidth <= MIN_SIZE || halfHeight <= MIN_SIZE || halfDepth <= MIN_SIZE;
     }
@@ -0,0 +1,44 @@
+package de.thriemer.engine.world;
+
+import org.joml.Vector3f;
+
+/**
+ * Visible if radius > distanceFactor * squared distance to the camera + minRadius.
+ * Covers the screen size test of the camera as well as the fixed size threshold of the shadow cascades,
+ * culling kernels recognize it and test a whole batch of spheres at once.
+ */
+public class SizeVisibility implements VisibilityPredicate {
+
+    float cameraX;
+    float cameraY;
+    float cameraZ;
+    float distanceFactor;
+    float minRadius;
+
+    public SizeVisibility set(Vector3f cameraPosition, float distanceFactor, float minRadius) {
+        cameraX = cameraPosition.x;
+        cameraY = cameraPosition.y;
+        cameraZ = cameraPosition.z;
+        this.distanceFactor = distanceFactor;
+        this.minRadius = minRadius;
+        return this;
+    }
+
+    @Override
+    public boolean isVisible(float centerX, float centerY, float centerZ, float radius) {
+        float dx = centerX - cameraX;
+        float dy = centerY - cameraY;
+        float dz = centerZ - cameraZ;
+        return radius > (dx * dx + dy * dy + dz * dz) * distanceFactor + minRadius;
+    }
+
+    @Override
+    public boolean allVisible(float centerX, float centerY, float centerZ, float radius, float smallestRadius) {
+        float dx = centerX - cameraX;
+        float dy = centerY - cameraY;
+        float dz = centerZ - cameraZ;
+        float maxDistance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz) + radius;
+        return smallestRadius > maxDistance * maxDistance * distanceFactor + minRadius;
+    }
+
+}
@@ -0,0 +1,73 @@
+package de.thriemer.engine.world;
+
+import org.joml.Vector3f;
+
+import java.util.Arrays;
+
+//world space bounding spheres as separate arrays, so culling kernels can load several spheres at once
+public class SphereBounds {
+
+    float[] x;
+    float[] y;
+    float[] z;
+    float[] r;
+    private int size = 0;
+
+    public SphereBounds(int capacity) {
+        x = new float[capacity];
+        y = new float[capacity];
+        z = new float[capacity];
+        r = new float[capacity];
+    }
+
+    public void add(Vector3f center, float radius) {
+        add(center.x, center.y, center.z, radius);
+    }
+
+    public void add(float centerX, float centerY, float centerZ, float radius) {
+        int index = size++;
+        if (index >= x.length) {
+            int capacity = Math.max(8, x.length * 2);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            z = Arrays.copyOf(z, capacity);
+            r = Arrays.copyOf(r, capacity);
+        }
+        x[index] = centerX;
+        y[index] = centerY;
+        z[index] = centerZ;
+        r[index] = radius;
+    }
+
+    public void set(int index, Vector3f center, float radius) {
+        x[index] = center.x;
+        y[index] = center.y;
+        z[index] = center.z;
+        r[index] = radius;
+    }
+
+    void copy(int from, int to) {
+        x[to] = x[from];
+        y[to] = y[from];
+        z[to] = z[from];
+        r[to] = r[from];
+    }
+
+    //moves the last sphere into the gap, the owner has to reorder its entities the same way
+    public void swapRemove(int index) {
+        size--;
+        x[index] = x[size];
+        y[index] = y[size];
+        z[index] = z[size];
+        r[index] = r[size];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+}
@@ -0,0 +1,70 @@
+package de.thriemer.engine.world;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+
+/**
+ * Tests a range of spheres against the frustum planes and a visibility predicate and sets the given bit
+ * in the mask of every sphere that passes. Uses the vector api if the jdk.incubator.vector module is present
+ * (--add-modules jdk.incubator.vector), otherwise a scalar loop.
+ */
+@Slf4j
+public class SphereCulling {
+
+    private static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    private static final ThreadLocal<int[]> maskScratch = ThreadLocal.withInitial(() -> new int[64]);
+
+    static {
+        log.info("Sphere culling is {}", VECTORIZED ? "vectorized" : "scalar, add the jdk.incubator.vector module to vectorize it");
+    }
+
+    private SphereCulling() {
+    }
+
+    //planes are nx, ny, nz, d per plane, null if the spheres are known to be inside the frustum
+    public static void cull(SphereBounds bounds, int start, int end, float[] planes, VisibilityPredicate visibility, int bit, int[] masks) {
+        if (visibility instanceof SizeVisibility sizeVisibility) {
+            if (VECTORIZED) {
+                VectorSphereCulling.cull(bounds, start, end, planes, sizeVisibility, bit, masks);
+            } else {
+                cullScalar(bounds, start, start, end, planes, sizeVisibility, bit, masks);
+            }
+        } else {
+            cullScalar(bounds, start, start, end, planes, visibility, bit, masks);
+        }
+    }
+
+    //masks are indexed relative to start, the spheres from first on get tested
+    static void cullScalar(SphereBounds bounds, int start, int first, int end, float[] planes, VisibilityPredicate visibility, int bit, int[] masks) {
+        for (int i = first; i < end; i++) {
+            float x = bounds.x[i];
+            float y = bounds.y[i];
+            float z = bounds.z[i];
+            float r = bounds.r[i];
+            if (visibility.isVisible(x, y, z, r) && (planes == null || inside(planes, x, y, z, r))) {
+                masks[i - start] |= bit;
+            }
+        }
+    }
+
+    private static boolean inside(float[] planes, float x, float y, float z, float r) {
+        for (int p = 0; p < 24; p += 4) {
+            if (planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3] < -r) return false;
+        }
+        return true;
+    }
+
+    //cleared scratch space for the masks of one node, only valid until the next call on the same thread
+    static int[] getMasks(int count) {
+        int[] masks = maskScratch.get();
+        if (masks.length < count) {
+            masks = new int[Math.max(count, masks.length * 2)];
+            maskScratch.set(masks);
+        } else {
+            Arrays.fill(masks, 0, count, 0);
+        }
+        return masks;
+    }
+
+}
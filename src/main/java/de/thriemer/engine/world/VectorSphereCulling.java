@@ -0,0 +1,51 @@
+package de.thriemer.engine.world;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+//only loaded if the incubator module is present, tests 8 (avx2) or 16 (avx-512) spheres per iteration
+class VectorSphereCulling {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private VectorSphereCulling() {
+    }
+
+    static void cull(SphereBounds bounds, int start, int end, float[] planes, SizeVisibility visibility, int bit, int[] masks) {
+        int lanes = SPECIES.length();
+        int vectorEnd = start + SPECIES.loopBound(end - start);
+        FloatVector cameraX = FloatVector.broadcast(SPECIES, visibility.cameraX);
+        FloatVector cameraY = FloatVector.broadcast(SPECIES, visibility.cameraY);
+        FloatVector cameraZ = FloatVector.broadcast(SPECIES, visibility.cameraZ);
+        FloatVector minRadius = FloatVector.broadcast(SPECIES, visibility.minRadius);
+        float distanceFactor = visibility.distanceFactor;
+        int i = start;
+        for (; i < vectorEnd; i += lanes) {
+            FloatVector x = FloatVector.fromArray(SPECIES, bounds.x, i);
+            FloatVector y = FloatVector.fromArray(SPECIES, bounds.y, i);
+            FloatVector z = FloatVector.fromArray(SPECIES, bounds.z, i);
+            FloatVector r = FloatVector.fromArray(SPECIES, bounds.r, i);
+            FloatVector dx = x.sub(cameraX);
+            FloatVector dy = y.sub(cameraY);
+            FloatVector dz = z.sub(cameraZ);
+            FloatVector distanceSquared = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz));
+            VectorMask<Float> visible = r.compare(VectorOperators.GT, distanceSquared.mul(distanceFactor).add(minRadius));
+            if (planes != null) {
+                FloatVector negativeR = r.neg();
+                for (int p = 0; p < 24 && visible.anyTrue(); p += 4) {
+                    FloatVector distance = x.mul(planes[p]).add(y.mul(planes[p + 1])).add(z.mul(planes[p + 2])).add(planes[p + 3]);
+                    visible = visible.and(distance.compare(VectorOperators.GE, negativeR));
+                }
+            }
+            if (visible.anyTrue()) {
+                for (long laneBits = visible.toLong(); laneBits != 0; laneBits &= laneBits - 1) {
+                    masks[i - start + Long.numberOfTrailingZeros(laneBits)] |= bit;
+                }
+            }
+        }
+        SphereCulling.cullScalar(bounds, start, i, end, planes, visibility, bit, masks);
+    }
+
+}
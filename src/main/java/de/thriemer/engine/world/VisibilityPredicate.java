@@ -0,0 +1,13 @@
+package de.thriemer.engine.world;
+
+@FunctionalInterface
+public interface VisibilityPredicate {
+
+    boolean isVisible(float centerX, float centerY, float centerZ, float radius);
+
+    //true if every sphere of at least smallestRadius within the bounding sphere is visible
+    default boolean allVisible(float centerX, float centerY, float centerZ, float radius, float smallestRadius) {
+        return false;
+    }
+
+}
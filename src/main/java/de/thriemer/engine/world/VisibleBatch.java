@@ -0,0 +1,53 @@
+package de.thriemer.engine.world;
+
+import de.thriemer.disguisedphoenix.Entity;
+
+import java.util.Arrays;
+
+//visible entities of one culling task, only touched by the thread running it until it is drained
+//batches are kept by the tree between frames, so the arrays only grow during the first frames
+class VisibleBatch implements FrustumMaskConsumer {
+
+    private Entity[] entities = new Entity[256];
+    private int[] masks = new int[256];
+    private int size = 0;
+    private InstanceRanges[] nodeInstances = new InstanceRanges[64];
+    private int[] nodeMasks = new int[64];
+    private int nodeCount = 0;
+
+    @Override
+    public void accept(Entity entity, int frustumMask) {
+        if (size == entities.length) {
+            entities = Arrays.copyOf(entities, size * 2);
+            masks = Arrays.copyOf(masks, size * 2);
+        }
+        entities[size] = entity;
+        masks[size] = frustumMask;
+        size++;
+    }
+
+    @Override
+    public void acceptAll(InstanceRanges instances, int frustumMask) {
+        if (nodeCount == nodeInstances.length) {
+            nodeInstances = Arrays.copyOf(nodeInstances, nodeCount * 2);
+            nodeMasks = Arrays.copyOf(nodeMasks, nodeCount * 2);
+        }
+        nodeInstances[nodeCount] = instances;
+        nodeMasks[nodeCount] = frustumMask;
+        nodeCount++;
+    }
+
+    void drainTo(FrustumMaskConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(entities[i], masks[i]);
+            entities[i] = null;
+        }
+        size = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            consumer.acceptAll(nodeInstances[i], nodeMasks[i]);
+            nodeInstances[i] = null;
+        }
+        nodeCount = 0;
+    }
+
+}
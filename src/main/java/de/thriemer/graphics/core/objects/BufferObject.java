@@ -35,6 +35,11 @@ public class BufferObject {
         allBufferObjects.forEach(vbo -> glDeleteBuffers(vbo.bufferID));
     }
 
+    public void delete() {
+        glDeleteBuffers(bufferID);
+        allBufferObjects.remove(this);
+    }
+
     public ByteBuffer createPersistantVbo(int floatCount) {
         int flags = GL_MAP_PERSISTENT_BIT | GL_MAP_WRITE_BIT | GL_MAP_COHERENT_BIT;
         long floatSizeInBytes = floatCount * 4L;
@@ -64,6 +69,19 @@ public class BufferObject {
         glBufferSubData(target, 0, data);
         unbind();
     }
+
+    //copied on the gpu, e.g. when a buffer is replaced by a bigger one
+    public void copyTo(BufferObject other, long byteCount) {
+        copyTo(other, 0, 0, byteCount);
+    }
+
+    public void copyTo(BufferObject other, long readOffset, long writeOffset, long byteCount) {
+        glBindBuffer(GL_COPY_READ_BUFFER, bufferID);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, other.bufferID);
+        glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, readOffset, writeOffset, byteCount);
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+    }
     public void bind() {
         glBindBuffer(target, bufferID);
     }
@@ -0,0 +1,105 @@
+package de.thriemer.graphics.core.objects;
+
+import de.thriemer.engine.util.RangeAllocator;
+import de.thriemer.graphics.core.renderer.InstanceFormat;
+import de.thriemer.graphics.loader.PackedMesh;
+import de.thriemer.graphics.modelinfo.RenderInfo;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import static org.lwjgl.opengl.GL15.GL_ELEMENT_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.GL_STATIC_DRAW;
+import static org.lwjgl.opengl.GL31.GL_COPY_READ_BUFFER;
+
+/**
+ * One vao whose vertices and indices live in a single buffer shared by many meshes, e.g. the terrain chunks.
+ * Every mesh gets one range from a free list, its interleaved vertices followed by its indices, so removed meshes leave
+ * space for new ones and all meshes can be drawn with one multi draw. The buffer is replaced by a bigger one when it runs full.
+ * Packed meshes are copied into a persistently mapped staging ring as a whole and then into place on the gpu.
+ */
+@Slf4j
+public class MeshArena {
+
+    //floats of posAndWobble and of colorAndShininess
+    private static final int VERTEX_COMPONENTS = 4;
+    //ranges are counted in vertices, so the start of a range is the base vertex of its mesh
+    private static final int UNIT_BYTES = PackedMesh.VERTEX_BYTES;
+
+    @Getter
+    private final Vao vao;
+    private final RangeAllocator allocator;
+    //bound as vertex and as index buffer
+    private BufferObject meshData;
+    private final StreamingBuffer staging;
+
+    public MeshArena(int capacityBytes, int stagingBytesPerFrame) {
+        staging = new StreamingBuffer(GL_COPY_READ_BUFFER, 1, stagingBytesPerFrame / 4);
+        allocator = new RangeAllocator(capacityBytes / UNIT_BYTES);
+        meshData = createBuffer(allocator.getCapacity());
+        vao = new Vao();
+        bindBuffers();
+        vao.unbind();
+    }
+
+    public void addInstancedAttributes(StreamingBuffer instanceBuffer) {
+        vao.bind();
+        InstanceFormat.ACTIVE.addInstancedAttributes(vao, instanceBuffer);
+        vao.unbind();
+    }
+
+    //the indices stay relative to the mesh, the base vertex of the render info offsets them
+    public RenderInfo add(PackedMesh mesh) {
+        int units = getUnits(mesh.getVertexCount(), mesh.getIndexCount());
+        int offset = allocator.allocate(units);
+        if (offset < 0) {
+            grow(units);
+            offset = allocator.allocate(units);
+        }
+        int byteSize = (int) mesh.getByteSize();
+        int stagingOffset = staging.allocate(byteSize / 4);
+        staging.getBytes().put(stagingOffset * 4, mesh.getData(), 0, byteSize);
+        staging.copyTo(meshData, stagingOffset, byteSize / 4, (long) offset * UNIT_BYTES);
+        int firstIndex = (offset + mesh.getVertexCount()) * UNIT_BYTES / 4;
+        return new RenderInfo(vao, mesh.getIndexCount(), firstIndex, offset, mesh.getVertexCount());
+    }
+
+    //fences the staging copies of this frame
+    public void endFrame() {
+        staging.endFrame();
+    }
+
+    //buffer updates are ordered with the draws, the space can be reused right away
+    public void remove(RenderInfo renderInfo) {
+        allocator.free(renderInfo.getVertexOffset(), getUnits(renderInfo.getVertexCount(), renderInfo.getIndicesCount()));
+    }
+
+    private static int getUnits(int vertexCount, int indexCount) {
+        return vertexCount + (indexCount * 4 + UNIT_BYTES - 1) / UNIT_BYTES;
+    }
+
+    private void grow(int neededUnits) {
+        int oldCapacity = allocator.getCapacity();
+        int newCapacity = Math.max(oldCapacity * 2, oldCapacity + neededUnits);
+        log.info("Growing mesh arena from {} to {} bytes", (long) oldCapacity * UNIT_BYTES, (long) newCapacity * UNIT_BYTES);
+        BufferObject replacement = createBuffer(newCapacity);
+        meshData.copyTo(replacement, (long) oldCapacity * UNIT_BYTES);
+        meshData.delete();
+        meshData = replacement;
+        allocator.grow(newCapacity);
+        vao.bind();
+        bindBuffers();
+        vao.unbind();
+    }
+
+    private void bindBuffers() {
+        vao.addDataAttributes(meshData, 0, VERTEX_COMPONENTS, 2 * VERTEX_COMPONENTS, 0);
+        vao.addDataAttributes(meshData, 1, VERTEX_COMPONENTS, 2 * VERTEX_COMPONENTS, VERTEX_COMPONENTS);
+        vao.addIndicies(meshData);
+    }
+
+    //the element array binding must not be changed while a vao is bound, so the buffer is set up unbound
+    private static BufferObject createBuffer(int units) {
+        return new BufferObject(units * (UNIT_BYTES / 4), GL_ELEMENT_ARRAY_BUFFER, GL_STATIC_DRAW).unbind();
+    }
+
+}
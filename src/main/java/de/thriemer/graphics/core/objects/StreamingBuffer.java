@@ -0,0 +1,205 @@
+package de.thriemer.graphics.core.objects;
+
+import de.thriemer.engine.time.CounterQuery;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL32.*;
+
+/**
+ * Persistently mapped buffer the cpu writes into every frame. Allocations run through it like a ring buffer sized for
+ * {@link #FRAMES_IN_FLIGHT} frames, the owner calls {@link #endFrame()} once the draws of a frame are issued, which places
+ * one fence behind the allocations of the frame. A range is only handed out again once the fence of the frame that used it has passed.
+ * Sizes and offsets are counted in elements, e.g. instances, so an allocation can directly be used as base instance.
+ * The draws reading an allocation have to be issued before the next allocation of the same buffer, otherwise a frame that
+ * fills the whole ring would overwrite data the gpu hasn't seen yet.
+ */
+@Slf4j
+public class StreamingBuffer {
+
+    public static final int FRAMES_IN_FLIGHT = 3;
+    private static final long WAIT_TIMEOUT_NANOS = 1_000_000;
+    //one sample per buffer and frame
+    private static final CounterQuery stallQuery = new CounterQuery("Streaming buffer stall in microseconds");
+
+    private final int target;
+    //in floats or ints
+    private final int elementSize;
+    private int capacity;
+    private BufferObject buffer;
+    //views are replaced when the buffer grows, fetch them after allocating
+    @Getter
+    private ByteBuffer bytes;
+    @Getter
+    private FloatBuffer floats;
+    @Getter
+    private IntBuffer ints;
+
+    //positions only increase, the ring offset is position % capacity
+    private long position;
+    //the gpu is done with everything before this position
+    private long releasedPosition;
+    private long frameStart;
+    private final ArrayDeque<Fence> fences = new ArrayDeque<>();
+    private final List<AttributeBinding> attributeBindings = new ArrayList<>();
+    private long stallNanos;
+
+    public StreamingBuffer(int target, int elementSize, int elementsPerFrame) {
+        this.target = target;
+        this.elementSize = elementSize;
+        createStorage(elementsPerFrame * FRAMES_IN_FLIGHT);
+    }
+
+    //places the fence of this frame, call once all draws reading this frame's allocations are issued
+    public void endFrame() {
+        if (position != frameStart) {
+            fence();
+        }
+        //triple buffering, don't let the cpu run further ahead
+        if (fences.size() > FRAMES_IN_FLIGHT) {
+            long start = System.nanoTime();
+            releaseOldest();
+            stallNanos += System.nanoTime() - start;
+        }
+        stallQuery.record((int) (stallNanos / 1000));
+        stallNanos = 0;
+    }
+
+    /**
+     * Reserves a contiguous range of elements, waits if the gpu still reads from it.
+     * A request bigger than a frame's share of the ring grows the buffer instead.
+     */
+    public int allocate(int elements) {
+        if (elements > capacity / FRAMES_IN_FLIGHT) {
+            grow(elements * FRAMES_IN_FLIGHT);
+        }
+        int offset = (int) (position % capacity);
+        if (offset + elements > capacity) {
+            //allocations don't wrap, the tail of the ring is skipped
+            position += capacity - offset;
+            offset = 0;
+        }
+        long end = position + elements;
+        waitUntilReleased(end - capacity);
+        position = end;
+        return offset;
+    }
+
+    public void bind() {
+        buffer.bind();
+    }
+
+    public void unbind() {
+        buffer.unbind();
+    }
+
+    //copies an allocation on the gpu, e.g. when the buffer is used for staging
+    public void copyTo(BufferObject target, int offset, int elements, long targetByteOffset) {
+        buffer.copyTo(target, offset * elementSize * 4L, targetByteOffset, elements * elementSize * 4L);
+    }
+
+    //the vao has to be bound, the binding is repeated when the buffer grows
+    public void addInstancedAttribute(Vao vao, int attributeNumber, int coordinateSize, int offset) {
+        vao.addInstancedAttribute(buffer, attributeNumber, coordinateSize, elementSize, offset);
+        attributeBindings.add(new AttributeBinding(vao, attributeNumber, coordinateSize, offset));
+    }
+
+    //points the instanced attributes of the vao back at this buffer, the vao has to be bound
+    public void bindInstancedAttributes(Vao vao) {
+        for (AttributeBinding binding : attributeBindings) {
+            if (binding.vao == vao) {
+                vao.addInstancedAttribute(buffer, binding.attributeNumber, binding.coordinateSize, elementSize, binding.offset);
+            }
+        }
+    }
+
+    private void waitUntilReleased(long requiredPosition) {
+        if (releasedPosition >= requiredPosition) return;
+        long start = System.nanoTime();
+        while (releasedPosition < requiredPosition) {
+            if (fences.isEmpty()) {
+                //the current frame filled the ring, everything it allocated so far has already been drawn
+                fence();
+            }
+            releaseOldest();
+        }
+        stallNanos += System.nanoTime() - start;
+    }
+
+    private void fence() {
+        fences.add(new Fence(glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0), position));
+        frameStart = position;
+    }
+
+    private void releaseOldest() {
+        Fence oldest = fences.poll();
+        int result = glClientWaitSync(oldest.sync, GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_TIMEOUT_NANOS);
+        while (result == GL_TIMEOUT_EXPIRED) {
+            result = glClientWaitSync(oldest.sync, 0, WAIT_TIMEOUT_NANOS);
+        }
+        if (result == GL_WAIT_FAILED) {
+            log.error("Waiting for a streaming buffer fence failed");
+        }
+        glDeleteSync(oldest.sync);
+        releasedPosition = oldest.end;
+    }
+
+    private void grow(int minCapacity) {
+        int newCapacity = Math.max(minCapacity, capacity * 2);
+        log.info("Growing streaming buffer from {} to {} elements", capacity, newCapacity);
+        //draws already issued keep their storage alive, gl frees it once they are done
+        buffer.delete();
+        fences.forEach(fence -> glDeleteSync(fence.sync));
+        fences.clear();
+        createStorage(newCapacity);
+        for (AttributeBinding binding : attributeBindings) {
+            binding.vao.bind();
+            binding.vao.addInstancedAttribute(buffer, binding.attributeNumber, binding.coordinateSize, elementSize, binding.offset);
+            binding.vao.unbind();
+        }
+    }
+
+    private void createStorage(int capacity) {
+        this.capacity = capacity;
+        buffer = new BufferObject(target);
+        bytes = buffer.createPersistantVbo(capacity * elementSize);
+        buffer.unbind();
+        floats = bytes.asFloatBuffer();
+        ints = bytes.asIntBuffer();
+        position = 0;
+        releasedPosition = 0;
+        frameStart = 0;
+    }
+
+    private static class Fence {
+        private final long sync;
+        private final long end;
+
+        private Fence(long sync, long end) {
+            this.sync = sync;
+            this.end = end;
+        }
+    }
+
+    private static class AttributeBinding {
+        private final Vao vao;
+        private final int attributeNumber;
+        private final int coordinateSize;
+        private final int offset;
+
+        private AttributeBinding(Vao vao, int attributeNumber, int coordinateSize, int offset) {
+            this.vao = vao;
+            this.attributeNumber = attributeNumber;
+            this.coordinateSize = coordinateSize;
+            this.offset = offset;
+        }
+    }
+
+}
@@ -53,6 +53,16 @@ public class Vao {
         return this;
     }
 
+    //the buffer is shared, e.g. by the meshes of a mesh arena
+    //it is bound as array buffer whatever its own target is, so one buffer can hold vertices and indices
+    public Vao addDataAttributes(BufferObject vbo, int attributeNumber, int coordinateSize, int stride, int offset) {
+        glBindBuffer(GL_ARRAY_BUFFER, vbo.getBufferID());
+        glVertexAttribPointer(attributeNumber, coordinateSize, GL11.GL_FLOAT, false, stride * 4, offset * 4L);
+        glEnableVertexAttribArray(attributeNumber);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        if (!attribNumbers.contains(attributeNumber)) attribNumbers.add(attributeNumber);
+        return this;
+    }
 
     public Vao addIndicies(int[] indicies) {
         BufferObject vbo = new BufferObject(GL15.GL_ELEMENT_ARRAY_BUFFER);
@@ -61,13 +71,19 @@ public class Vao {
         return this;
     }
 
+    //the element array binding is part of the vao state, so the buffer has to stay bound
+    public Vao addIndicies(BufferObject indexBuffer) {
+        indexBuffer.bind();
+        return this;
+    }
+
     public void addInstancedAttribute(BufferObject vbo, int attributeNumber, int coordinateSize, int instancedDataLength, int offset) {
         vbo.bind();
         glVertexAttribPointer(attributeNumber, coordinateSize, GL11.GL_FLOAT, false, instancedDataLength * 4, offset * 4L);
         glVertexAttribDivisor(attributeNumber, 1);
         glEnableVertexAttribArray(attributeNumber);
         vbo.unbind();
-        attribNumbers.add(attributeNumber);
+        if (!attribNumbers.contains(attributeNumber)) attribNumbers.add(attributeNumber);
     }
 
 }
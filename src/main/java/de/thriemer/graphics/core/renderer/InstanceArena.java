@@ -0,0 +1,135 @@
+package de.thriemer.graphics.core.renderer;
+
+import de.thriemer.engine.util.RangeAllocator;
+import de.thriemer.engine.world.InstanceRanges;
+import de.thriemer.graphics.core.objects.BufferObject;
+import de.thriemer.graphics.core.objects.StreamingBuffer;
+import de.thriemer.graphics.core.objects.Vao;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL20.GL_ARRAY_BUFFER;
+
+/**
+ * Gpu resident instance data of static octree nodes. The instance data of a node is uploaded the first time it gets drawn
+ * and stays until the node is rebuilt or the space is needed by other nodes, per frame only the draw commands pointing into it are written.
+ */
+@Slf4j
+public class InstanceArena {
+
+    private final InstanceFormat format = InstanceFormat.ACTIVE;
+    private final RangeAllocator allocator;
+    private final Map<InstanceRanges, Slot> residentInstances = new IdentityHashMap<>();
+    //slots of released ranges, freed once no frame in flight can read them anymore
+    private final List<Slot> releasedSlots = new ArrayList<>();
+    private BufferObject buffer;
+    private FloatBuffer instanceData;
+    //ranges not drawn for more than FRAMES_IN_FLIGHT frames are no longer read by the gpu
+    private long frame;
+
+    public InstanceArena(int instanceCount) {
+        allocator = new RangeAllocator(instanceCount);
+        createStorage(instanceCount);
+    }
+
+    //uploads the instance data if it isn't resident yet
+    public int getFirstInstance(InstanceRanges instances) {
+        Slot slot = residentInstances.get(instances);
+        if (slot == null) {
+            slot = upload(instances);
+            residentInstances.put(instances, slot);
+        }
+        slot.lastDrawnFrame = frame;
+        return slot.offset;
+    }
+
+    //the ranges won't be drawn anymore, e.g. because their octree node was rebuilt
+    public void release(InstanceRanges instances) {
+        Slot slot = residentInstances.remove(instances);
+        if (slot != null) releasedSlots.add(slot);
+    }
+
+    public void endFrame() {
+        frame++;
+        for (int i = releasedSlots.size() - 1; i >= 0; i--) {
+            Slot slot = releasedSlots.get(i);
+            if (isUnused(slot)) {
+                allocator.free(slot.offset, slot.instanceCount);
+                releasedSlots.set(i, releasedSlots.get(releasedSlots.size() - 1));
+                releasedSlots.remove(releasedSlots.size() - 1);
+            }
+        }
+    }
+
+    //the vao has to be bound
+    public void bindInstancedAttributes(Vao vao) {
+        format.bindInstancedAttributes(vao, buffer);
+    }
+
+    private Slot upload(InstanceRanges instances) {
+        int instanceCount = instances.getEntities().length;
+        int offset = allocator.allocate(instanceCount);
+        if (offset < 0) {
+            evictUnused();
+            offset = allocator.allocate(instanceCount);
+        }
+        if (offset < 0) {
+            grow(instanceCount);
+            offset = allocator.allocate(instanceCount);
+        }
+        instanceData.put(offset * format.floatsPerInstance, instances.getInstanceData());
+        return new Slot(offset, instanceCount);
+    }
+
+    private boolean isUnused(Slot slot) {
+        //frames still in flight might read it
+        return frame - slot.lastDrawnFrame > StreamingBuffer.FRAMES_IN_FLIGHT;
+    }
+
+    private void evictUnused() {
+        Iterator<Slot> itr = residentInstances.values().iterator();
+        while (itr.hasNext()) {
+            Slot slot = itr.next();
+            if (isUnused(slot)) {
+                allocator.free(slot.offset, slot.instanceCount);
+                itr.remove();
+            }
+        }
+    }
+
+    private void grow(int neededInstances) {
+        int newCapacity = Math.max(allocator.getCapacity() * 2, allocator.getCapacity() + neededInstances);
+        log.info("Growing instance arena from {} to {} instances", allocator.getCapacity(), newCapacity);
+        //draws already issued keep the old storage alive, released slots aren't drawn anymore and don't need a copy
+        buffer.delete();
+        createStorage(newCapacity);
+        allocator.grow(newCapacity);
+        for (Map.Entry<InstanceRanges, Slot> resident : residentInstances.entrySet()) {
+            instanceData.put(resident.getValue().offset * format.floatsPerInstance, resident.getKey().getInstanceData());
+        }
+    }
+
+    private void createStorage(int instanceCount) {
+        buffer = new BufferObject(GL_ARRAY_BUFFER);
+        instanceData = buffer.createPersistantVbo(instanceCount * format.floatsPerInstance).asFloatBuffer();
+        buffer.unbind();
+    }
+
+    private static class Slot {
+        private final int offset;
+        private final int instanceCount;
+        private long lastDrawnFrame;
+
+        private Slot(int offset, int instanceCount) {
+            this.offset = offset;
+            this.instanceCount = instanceCount;
+        }
+    }
+
+}
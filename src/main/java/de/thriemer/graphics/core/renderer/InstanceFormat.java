@@ -0,0 +1,100 @@
+package de.thriemer.graphics.core.renderer;
+
+import de.thriemer.disguisedphoenix.Entity;
+import de.thriemer.graphics.core.objects.BufferObject;
+import de.thriemer.graphics.core.objects.StreamingBuffer;
+import de.thriemer.graphics.core.objects.Vao;
+import de.thriemer.graphics.core.shaders.ShaderFactory;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Layout of the per instance data of the multi draw vaos. The compact format only works for entities
+ * that are translated, rotated and uniformly scaled, which is all the placed vegetation is.
+ */
+public enum InstanceFormat {
+
+    //full transformation matrix
+    MATRIX(16, 12),
+    //position and scale, then the rotation as quaternion
+    COMPACT(8, 0);
+
+    //decided once at startup, the vaos and shaders are set up for it
+    public static final InstanceFormat ACTIVE = COMPACT;
+    private static final int FIRST_INSTANCE_ATTRIBUTE = 2;
+
+    public final int floatsPerInstance;
+    //where the position is stored within an instance
+    public final int positionOffset;
+
+    InstanceFormat(int floatsPerInstance, int positionOffset) {
+        this.floatsPerInstance = floatsPerInstance;
+        this.positionOffset = positionOffset;
+    }
+
+    //instance data of an untransformed mesh, e.g. a terrain chunk which is already in world space
+    public float[] identity() {
+        float[] identity = new float[floatsPerInstance];
+        if (this == MATRIX) {
+            identity[0] = identity[5] = identity[10] = identity[15] = 1;
+        } else {
+            identity[3] = identity[7] = 1;
+        }
+        return identity;
+    }
+
+    //used when the instance data of an octree node is cached
+    public void write(Entity entity, float[] target, int offset) {
+        write(entity, FloatBuffer.wrap(target), offset);
+    }
+
+    public void write(Entity entity, FloatBuffer target, int offset) {
+        if (this == MATRIX) {
+            entity.getTransformationMatrix().get(offset, target);
+            return;
+        }
+        target.put(offset, entity.getPosition().x);
+        target.put(offset + 1, entity.getPosition().y);
+        target.put(offset + 2, entity.getPosition().z);
+        target.put(offset + 3, entity.getScale());
+        //same as Quaternionf.rotationXYZ, which matches the rotateXYZ of the entity matrix
+        float sx = (float) Math.sin(entity.getRotX() * 0.5);
+        float cx = (float) Math.cos(entity.getRotX() * 0.5);
+        float sy = (float) Math.sin(entity.getRotY() * 0.5);
+        float cy = (float) Math.cos(entity.getRotY() * 0.5);
+        float sz = (float) Math.sin(entity.getRotZ() * 0.5);
+        float cz = (float) Math.cos(entity.getRotZ() * 0.5);
+        float cycz = cy * cz;
+        float sysz = sy * sz;
+        float sycz = sy * cz;
+        float cysz = cy * sz;
+        target.put(offset + 4, sx * cycz + cx * sysz);
+        target.put(offset + 5, cx * sycz - sx * cysz);
+        target.put(offset + 6, cx * cysz + sx * sycz);
+        target.put(offset + 7, cx * cycz - sx * sysz);
+    }
+
+    public void addInstancedAttributes(Vao vao, StreamingBuffer instanceBuffer) {
+        for (int i = 0; i < floatsPerInstance / 4; i++) {
+            instanceBuffer.addInstancedAttribute(vao, FIRST_INSTANCE_ATTRIBUTE + i, 4, i * 4);
+        }
+    }
+
+    //points the instanced attributes of the bound vao at another buffer with the same layout
+    public void bindInstancedAttributes(Vao vao, BufferObject instanceVbo) {
+        for (int i = 0; i < floatsPerInstance / 4; i++) {
+            vao.addInstancedAttribute(instanceVbo, FIRST_INSTANCE_ATTRIBUTE + i, 4, floatsPerInstance, i * 4);
+        }
+    }
+
+    //the multi draw vertex shaders pick their instance inputs with the compactInstances constant
+    public ShaderFactory configure(ShaderFactory shaderFactory) {
+        shaderFactory.configureShaderConstant("compactInstances", this == COMPACT ? 1 : 0);
+        if (this == COMPACT) {
+            shaderFactory.setAttributeLocation("instancePositionScale", FIRST_INSTANCE_ATTRIBUTE);
+            shaderFactory.setAttributeLocation("instanceRotation", FIRST_INSTANCE_ATTRIBUTE + 1);
+        }
+        return shaderFactory;
+    }
+
+}
@@ -1,154 +1,158 @@
 package de.thriemer.graphics.core.renderer;
 
-import de.thriemer.disguisedphoenix.Entity;
 import de.thriemer.disguisedphoenix.Main;
 import de.thriemer.disguisedphoenix.rendering.OcclusionCalculator;
-import de.thriemer.engine.util.Maths;
-import de.thriemer.graphics.core.objects.BufferObject;
-import de.thriemer.graphics.core.objects.LockManger;
+import de.thriemer.engine.world.InstanceRanges;
+import de.thriemer.graphics.core.objects.StreamingBuffer;
 import de.thriemer.graphics.core.objects.Vao;
-import de.thriemer.graphics.modelinfo.Model;
 import de.thriemer.graphics.modelinfo.RenderInfo;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.joml.Matrix4f;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL43;
 
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 import static org.lwjgl.opengl.GL20.GL_ARRAY_BUFFER;
-import static org.lwjgl.opengl.GL20.GL_STREAM_DRAW;
 import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
 
 @Slf4j
 public class MultiIndirectRenderer {
 
-    private static final int BUFFER_COUNT = 3;
-    private final ByteBuffer occlusionMatrixBuffer;
-    private final ByteBuffer renderMatrixBuffer;
+    //count, instanceCount, firstIndex, baseVertex, baseInstance
+    private static final int INTS_PER_COMMAND = 5;
 
-    private final LockManger lockManger;
     @Getter
-    private BufferObject persistentMatrixVbo;
-    private BufferObject occlusionMatrixVbo;
-    public List<Entity> currentEntities = new ArrayList<>();
+    private final StreamingBuffer instanceBuffer;
+    private final InstanceArena instanceArena;
     //etwa 3 mb an grafikkarten speicher
-    int floatsPerInstance = 16;
+    int floatsPerInstance = InstanceFormat.ACTIVE.floatsPerInstance;
     int maxInstanceCount = 50000;
-    int maxCommandCount = 100;
-    BufferObject cmdBuffer;
-    Map<Vao, int[]> renderCommands;
-    private int writeHead;
+    private final StreamingBuffer commandBuffer;
+    //commands of all vaos back to back, one multi draw per vao
+    private int[] commands = new int[100 * INTS_PER_COMMAND];
+    private int commandCount;
+    private Vao[] drawVaos = new Vao[16];
+    private int[] drawFirstCommands = new int[16];
+    private int[] drawCommandCounts = new int[16];
+    private int drawCount;
+    //draws from here on read their instances from the arena
+    private int firstArenaDraw;
 
     OcclusionCalculator occlusionCalculator;
 
     public MultiIndirectRenderer() {
-        persistentMatrixVbo = new BufferObject(GL_ARRAY_BUFFER);
-        renderMatrixBuffer = persistentMatrixVbo.createPersistantVbo(maxInstanceCount * BUFFER_COUNT * floatsPerInstance);
-        persistentMatrixVbo.unbind();
-        occlusionMatrixVbo = new BufferObject(GL_ARRAY_BUFFER);
-        occlusionMatrixBuffer = occlusionMatrixVbo.createPersistantVbo(maxInstanceCount * BUFFER_COUNT * floatsPerInstance);
-        occlusionMatrixVbo.unbind();
-
-        cmdBuffer = new BufferObject(maxCommandCount * 5, GL_DRAW_INDIRECT_BUFFER, GL_STREAM_DRAW);
-        cmdBuffer.unbind();
-        renderCommands = new HashMap<>();
-        lockManger = new LockManger();
-        writeHead = 0;
+        instanceBuffer = new StreamingBuffer(GL_ARRAY_BUFFER, floatsPerInstance, maxInstanceCount);
+        instanceArena = new InstanceArena(maxInstanceCount * 4);
+        //one queue per shadow cascade and the camera are drawn every frame
+        commandBuffer = new StreamingBuffer(GL_DRAW_INDIRECT_BUFFER, INTS_PER_COMMAND, 500);
         occlusionCalculator = new OcclusionCalculator();
     }
-//TODO: fix when overflow that it doesnt go wild
-    public void prepareRenderer(List<Entity> entities) {
-        currentEntities.clear();
-        currentEntities.addAll(entities);
-        //sort entities according to Vao and model (remember one vao has multiple models)
-        Map<Vao, Map<RenderInfo, List<Matrix4f>>> vaoSortedEntries = new HashMap<>();
-        for (Entity e : entities) {
-            RenderInfo entityRenderInfo = e.getModel().getRenderInfo();
-            if (entityRenderInfo.isMultiDrawCapable()) {
-                Map<RenderInfo, List<Matrix4f>> instanceMap = vaoSortedEntries.computeIfAbsent(entityRenderInfo.getActualVao(), k -> new HashMap<>());
-                List<Matrix4f> entityTransformation = instanceMap.computeIfAbsent(entityRenderInfo, k -> new ArrayList<>());
-                entityTransformation.add(e.getTransformationMatrix());
-                Main.inViewObjects++;
-                Main.facesDrawn += entityRenderInfo.getIndicesCount() / 3;
+
+    /**
+     * Reserves a slot range for all instances of the queue, sorting it gives every render info a contiguous part of it.
+     * The instance data is written straight from its source into the mapped buffer, nothing is allocated once the buffers are big enough.
+     * Batches of static instances only get a command pointing into the instance arena.
+     */
+    public void prepareRenderer(RenderQueue queue) {
+        queue.sort();
+        commandCount = 0;
+        drawCount = 0;
+        prepareInstances(queue);
+        firstArenaDraw = drawCount;
+        prepareBatches(queue);
+    }
+
+    private void prepareInstances(RenderQueue queue) {
+        int instanceCount = queue.getSize();
+        if (instanceCount == 0) return;
+        int firstInstance = instanceBuffer.allocate(instanceCount);
+        FloatBuffer instanceData = instanceBuffer.getFloats();
+        RenderInfo currentRenderInfo = null;
+        int commandStart = 0;
+        for (int i = 0; i < instanceCount; i++) {
+            RenderInfo renderInfo = queue.getRenderInfo(i);
+            if (renderInfo != currentRenderInfo) {
+                if (currentRenderInfo != null) addCommand(currentRenderInfo, i - commandStart, firstInstance + commandStart);
+                Vao vao = queue.getVao(i);
+                if (drawCount == 0 || drawVaos[drawCount - 1] != vao) startDraw(vao);
+                currentRenderInfo = renderInfo;
+                commandStart = i;
             }
+            Main.inViewVerticies += renderInfo.getIndicesCount();
+            queue.writeInstance(i, instanceData, (firstInstance + i) * floatsPerInstance);
         }
-        prepareRenderer(vaoSortedEntries);
+        addCommand(currentRenderInfo, instanceCount - commandStart, firstInstance + commandStart);
     }
 
-    public void prepareRenderer(RenderInfo renderInfo, List<Matrix4f> matrix4fList) {
-        if (renderInfo.isMultiDrawCapable()) {
-            Map<Vao, Map<RenderInfo, List<Matrix4f>>> vaoSortedEntries = new HashMap<>();
-            Map<RenderInfo, List<Matrix4f>> map = new HashMap<>();
-            map.put(renderInfo, matrix4fList);
-            vaoSortedEntries.put(renderInfo.getActualVao(), map);
-            prepareRenderer(vaoSortedEntries);
-        } else {
-            log.error("Model not MultiDraw capable");
+    private void prepareBatches(RenderQueue queue) {
+        for (int i = 0; i < queue.getBatchCount(); i++) {
+            InstanceRanges instances = queue.getBatchInstances(i);
+            int range = queue.getBatchRange(i);
+            RenderInfo renderInfo = queue.getBatchRenderInfo(i);
+            Vao vao = queue.getBatchVao(i);
+            if (drawCount == firstArenaDraw || drawVaos[drawCount - 1] != vao) startDraw(vao);
+            int instanceCount = instances.getInstanceCount(range);
+            Main.inViewVerticies += renderInfo.getIndicesCount() * instanceCount;
+            addCommand(renderInfo, instanceCount, instanceArena.getFirstInstance(instances) + instances.getFirstInstance(range));
         }
     }
 
-/*
-    public List<Entity> prepareRenderer(List<Entity> entities,int hiZ, Matrix4f projViewMatrix, int width, int height){
-
-    }*/
-
-    public void prepareRenderer(Map<Vao, Map<RenderInfo, List<Matrix4f>>> vaoSortedEntries) {
-        renderCommands.clear();
-        //build command buffer per vao, fill matrix buffer and render
-        for (Vao vao : vaoSortedEntries.keySet()) {
-            Map<RenderInfo, List<Matrix4f>> modelMatrixMap = vaoSortedEntries.get(vao);
-            int newEntries = modelMatrixMap.keySet().stream().mapToInt(ri -> modelMatrixMap.get(ri).size()).sum();
-            int beginIndex = writeHead;
-            int endIndex = (int) Maths.clamp(writeHead + newEntries - 1f, 0, BUFFER_COUNT * maxInstanceCount - 1f);
-            int overShooting = (writeHead + newEntries - 1) % (BUFFER_COUNT * maxInstanceCount);
-            List<IndirectCommand> commands = new ArrayList<>();
-            lockManger.waitForFence(beginIndex, endIndex);
-            for (RenderInfo info : modelMatrixMap.keySet()) {
-                List<Matrix4f> instances = modelMatrixMap.get(info);
-                //add command
-                int startingHead = writeHead;
-                int instancesSize = 0;
-                Main.inViewVerticies += info.getIndicesCount() * instances.size();
-                //add matricies to buffer
-                for (int i = 0; i < instances.size(); i++) {
-                    Matrix4f m = instances.get(i);
-                        // * floatsPerInstance * 4 because its a bytebuffer so offset needs to be in bytes
-                        m.get(writeHead * floatsPerInstance * 4, renderMatrixBuffer);
-                        instancesSize++;
-                        writeHead++;
-                        if (writeHead >= BUFFER_COUNT * maxInstanceCount) {
-                            lockManger.waitForFence(0, overShooting);
-                            commands.add(new IndirectCommand(info.getIndicesCount(), instancesSize, info.getIndexOffset(), info.getVertexOffset(), startingHead));
-                            lockManger.addFence(0, overShooting);
-                            startingHead = writeHead = 0;
-                            instancesSize = 0;
-                    }
-                }
-                commands.add(new IndirectCommand(info.getIndicesCount(), instancesSize, info.getIndexOffset(), info.getVertexOffset(), startingHead));
-            }
-            renderCommands.put(vao, commands.stream().flatMapToInt(IndirectCommand::toStream).toArray());
-            lockManger.addFence(beginIndex, endIndex);
+    private void startDraw(Vao vao) {
+        if (drawCount == drawVaos.length) {
+            drawVaos = Arrays.copyOf(drawVaos, drawCount * 2);
+            drawFirstCommands = Arrays.copyOf(drawFirstCommands, drawCount * 2);
+            drawCommandCounts = Arrays.copyOf(drawCommandCounts, drawCount * 2);
         }
+        drawVaos[drawCount] = vao;
+        drawFirstCommands[drawCount] = commandCount;
+        drawCommandCounts[drawCount] = 0;
+        drawCount++;
+    }
+
+    private void addCommand(RenderInfo info, int instanceCount, int baseInstance) {
+        int offset = commandCount * INTS_PER_COMMAND;
+        if (offset == commands.length) {
+            commands = Arrays.copyOf(commands, offset * 2);
+        }
+        commands[offset] = info.getIndicesCount();
+        commands[offset + 1] = instanceCount;
+        commands[offset + 2] = info.getIndexOffset();
+        commands[offset + 3] = info.getVertexOffset();
+        commands[offset + 4] = baseInstance;
+        commandCount++;
+        drawCommandCounts[drawCount - 1]++;
     }
 
     public void render() {
-        for (Map.Entry<Vao, int[]> vaoCommand : renderCommands.entrySet()) {
-            Vao vao = vaoCommand.getKey();
-            cmdBuffer.updateVbo(vaoCommand.getValue());
-            //update command buffer
-            cmdBuffer.bind();
-            //render
+        if (commandCount == 0) return;
+        int firstCommand = commandBuffer.allocate(commandCount);
+        commandBuffer.getInts().put(firstCommand * INTS_PER_COMMAND, commands, 0, commandCount * INTS_PER_COMMAND);
+        commandBuffer.bind();
+        for (int i = 0; i < drawCount; i++) {
+            Vao vao = drawVaos[i];
             vao.bind();
-            GL43.glMultiDrawElementsIndirect(GL11.GL_TRIANGLES, GL11.GL_UNSIGNED_INT, 0, IndirectCommand.getCommandCount(vaoCommand.getValue()), 0);
+            boolean fromArena = i >= firstArenaDraw;
+            if (fromArena) instanceArena.bindInstancedAttributes(vao);
+            GL43.glMultiDrawElementsIndirect(GL11.GL_TRIANGLES, GL11.GL_UNSIGNED_INT, (long) (firstCommand + drawFirstCommands[i]) * INTS_PER_COMMAND * 4, drawCommandCounts[i], 0);
+            if (fromArena) instanceBuffer.bindInstancedAttributes(vao);
             Main.drawCalls++;
             vao.unbind();
         }
+        commandBuffer.unbind();
+    }
+
+    //ranges of rebuilt octree nodes, their arena slots are freed once the frames in flight are done with them
+    public void releaseInstances(InstanceRanges instances) {
+        instanceArena.release(instances);
+    }
+
+    //call once every queue of the frame is rendered, e.g. the camera and all shadow cascades
+    public void endFrame() {
+        instanceBuffer.endFrame();
+        commandBuffer.endFrame();
+        instanceArena.endFrame();
     }
 
 }
@@ -0,0 +1,214 @@
+package de.thriemer.graphics.core.renderer;
+
+import de.thriemer.disguisedphoenix.Entity;
+import de.thriemer.engine.util.RadixSort;
+import de.thriemer.engine.world.InstanceRanges;
+import de.thriemer.graphics.core.objects.Vao;
+import de.thriemer.graphics.modelinfo.RenderInfo;
+import lombok.Getter;
+import org.joml.Vector3f;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Instances of one frame, recorded into arrays which are reused every frame.
+ * Every instance gets a key made of vao, render info and view distance from the most to the least significant bits
+ * and its instance index in the lowest bits. Sorting the keys groups the instances per draw command, front to back within one command.
+ * Only references to the instance data are recorded, it is written once, straight from the entity into the target buffer.
+ * The ranges of octree nodes are recorded as batches, keyed the same way by their first instance, and drawn from the {@link InstanceArena}.
+ */
+public class RenderQueue {
+
+    private final InstanceFormat format = InstanceFormat.ACTIVE;
+    private static final int INDEX_BITS = 24;
+    private static final int DEPTH_BITS = 16;
+    private static final int RENDER_INFO_BITS = 14;
+    private static final int VAO_BITS = 64 - INDEX_BITS - DEPTH_BITS - RENDER_INFO_BITS;
+    private static final int DEPTH_SHIFT = INDEX_BITS;
+    private static final int RENDER_INFO_SHIFT = DEPTH_SHIFT + DEPTH_BITS;
+    private static final int VAO_SHIFT = RENDER_INFO_SHIFT + RENDER_INFO_BITS;
+    //render infos of single meshes like terrain chunks come and go, they share this id and are recorded per instance
+    private static final int SINGLE_RENDER_INFO_ID = (1 << RENDER_INFO_BITS) - 1;
+
+    //ids are handed out on first use and stay the same for all following frames
+    private final Map<RenderInfo, Integer> renderInfoIds = new IdentityHashMap<>();
+    private final Map<Vao, Integer> vaoIds = new IdentityHashMap<>();
+    private RenderInfo[] renderInfos = new RenderInfo[64];
+    private Vao[] vaos = new Vao[16];
+    //vao id of every render info id
+    private int[] renderInfoVaos = new int[64];
+
+    //an instance either references an entity or a single mesh drawn with the identity transformation
+    private Entity[] instanceEntities = new Entity[1024];
+    private RenderInfo[] singleRenderInfos = new RenderInfo[1024];
+    private final float[] identityInstance = format.identity();
+    private long[] keys = new long[1024];
+    @Getter
+    private int size = 0;
+
+    //one batch per instance range of an octree node, drawn straight from the instance arena
+    private InstanceRanges[] batchInstances = new InstanceRanges[256];
+    private int[] batchRanges = new int[256];
+    private long[] batchKeys = new long[256];
+    @Getter
+    private int batchCount = 0;
+    private final RadixSort sorter = new RadixSort();
+    private float viewX;
+    private float viewY;
+    private float viewZ;
+
+    public void begin(Vector3f viewPosition) {
+        //don't keep removed entities alive
+        Arrays.fill(instanceEntities, 0, size, null);
+        Arrays.fill(singleRenderInfos, 0, size, null);
+        Arrays.fill(batchInstances, 0, batchCount, null);
+        size = 0;
+        batchCount = 0;
+        viewX = viewPosition.x;
+        viewY = viewPosition.y;
+        viewZ = viewPosition.z;
+    }
+
+    public void add(Entity entity) {
+        RenderInfo renderInfo = entity.getModel().getRenderInfo();
+        if (!renderInfo.isMultiDrawCapable()) return;
+        ensureCapacity(size + 1);
+        Vector3f position = entity.getPosition();
+        instanceEntities[size] = entity;
+        int id = getId(renderInfo);
+        keys[size] = key(renderInfoVaos[id], id, position.x, position.y, position.z, size);
+        size++;
+    }
+
+    //a mesh that is already in world space, drawn once with the identity transformation
+    public void add(RenderInfo renderInfo, Vector3f sortPosition) {
+        ensureCapacity(size + 1);
+        singleRenderInfos[size] = renderInfo;
+        keys[size] = key(getVaoId(renderInfo.getActualVao()), SINGLE_RENDER_INFO_ID, sortPosition.x, sortPosition.y, sortPosition.z, size);
+        size++;
+    }
+
+    public void addAll(InstanceRanges instances) {
+        float[] source = instances.getInstanceData();
+        for (int range = 0; range < instances.getRangeCount(); range++) {
+            RenderInfo renderInfo = instances.getRenderInfo(range);
+            if (!renderInfo.isMultiDrawCapable()) continue;
+            if (batchCount == 1 << INDEX_BITS) {
+                throw new IllegalStateException("Render queue can't hold more than " + (1 << INDEX_BITS) + " batches per frame");
+            }
+            if (batchCount == batchKeys.length) {
+                batchKeys = Arrays.copyOf(batchKeys, batchCount * 2);
+                batchInstances = Arrays.copyOf(batchInstances, batchCount * 2);
+                batchRanges = Arrays.copyOf(batchRanges, batchCount * 2);
+            }
+            int position = instances.getFirstInstance(range) * format.floatsPerInstance + format.positionOffset;
+            batchInstances[batchCount] = instances;
+            batchRanges[batchCount] = range;
+            int id = getId(renderInfo);
+            batchKeys[batchCount] = key(renderInfoVaos[id], id, source[position], source[position + 1], source[position + 2], batchCount);
+            batchCount++;
+        }
+    }
+
+    public void sort() {
+        sorter.sort(keys, size, INDEX_BITS, 64);
+        sorter.sort(batchKeys, batchCount, INDEX_BITS, 64);
+    }
+
+    public RenderInfo getRenderInfo(int sortedIndex) {
+        RenderInfo single = singleRenderInfos[(int) keys[sortedIndex] & ((1 << INDEX_BITS) - 1)];
+        return single != null ? single : renderInfos[renderInfoIdOf(keys[sortedIndex])];
+    }
+
+    public Vao getVao(int sortedIndex) {
+        return vaos[(int) (keys[sortedIndex] >>> VAO_SHIFT)];
+    }
+
+    public RenderInfo getBatchRenderInfo(int sortedBatch) {
+        return renderInfos[renderInfoIdOf(batchKeys[sortedBatch])];
+    }
+
+    public Vao getBatchVao(int sortedBatch) {
+        return vaos[(int) (batchKeys[sortedBatch] >>> VAO_SHIFT)];
+    }
+
+    public InstanceRanges getBatchInstances(int sortedBatch) {
+        return batchInstances[(int) batchKeys[sortedBatch] & ((1 << INDEX_BITS) - 1)];
+    }
+
+    public int getBatchRange(int sortedBatch) {
+        return batchRanges[(int) batchKeys[sortedBatch] & ((1 << INDEX_BITS) - 1)];
+    }
+
+    private static int renderInfoIdOf(long key) {
+        return (int) (key >>> RENDER_INFO_SHIFT) & ((1 << RENDER_INFO_BITS) - 1);
+    }
+
+    public void writeInstance(int sortedIndex, FloatBuffer target, int targetOffset) {
+        int instance = (int) keys[sortedIndex] & ((1 << INDEX_BITS) - 1);
+        Entity entity = instanceEntities[instance];
+        if (entity != null) {
+            format.write(entity, target, targetOffset);
+        } else {
+            target.put(targetOffset, identityInstance, 0, format.floatsPerInstance);
+        }
+    }
+
+    private long key(int vaoId, int renderInfoId, float x, float y, float z, int instance) {
+        float dx = x - viewX;
+        float dy = y - viewY;
+        float dz = z - viewZ;
+        //positive floats sort like their bits, the upper 16 bits below the sign are enough for front to back
+        long depth = Float.floatToRawIntBits(dx * dx + dy * dy + dz * dz) >>> (31 - DEPTH_BITS);
+        return (long) vaoId << VAO_SHIFT | (long) renderInfoId << RENDER_INFO_SHIFT | depth << DEPTH_SHIFT | instance;
+    }
+
+    private int getId(RenderInfo renderInfo) {
+        Integer id = renderInfoIds.get(renderInfo);
+        if (id != null) return id;
+        int newId = renderInfoIds.size();
+        //the last id is reserved for single meshes
+        if (newId >= SINGLE_RENDER_INFO_ID) {
+            throw new IllegalStateException("Render queue ran out of render info ids, only " + SINGLE_RENDER_INFO_ID + " instanced meshes fit into a sort key");
+        }
+        if (newId == renderInfos.length) {
+            renderInfos = Arrays.copyOf(renderInfos, newId * 2);
+            renderInfoVaos = Arrays.copyOf(renderInfoVaos, newId * 2);
+        }
+        renderInfos[newId] = renderInfo;
+        renderInfoVaos[newId] = getVaoId(renderInfo.getActualVao());
+        renderInfoIds.put(renderInfo, newId);
+        return newId;
+    }
+
+    private int getVaoId(Vao vao) {
+        Integer id = vaoIds.get(vao);
+        if (id != null) return id;
+        int newId = vaoIds.size();
+        if (newId >= 1 << VAO_BITS) {
+            throw new IllegalStateException("Render queue ran out of vao ids, only " + (1 << VAO_BITS) + " vaos fit into a sort key");
+        }
+        if (newId == vaos.length) {
+            vaos = Arrays.copyOf(vaos, newId * 2);
+        }
+        vaos[newId] = vao;
+        vaoIds.put(vao, newId);
+        return newId;
+    }
+
+    private void ensureCapacity(int instances) {
+        if (instances > 1 << INDEX_BITS) {
+            throw new IllegalStateException("Render queue can't hold more than " + (1 << INDEX_BITS) + " instances per frame");
+        }
+        if (instances > keys.length) {
+            int capacity = Math.max(instances, keys.length * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            instanceEntities = Arrays.copyOf(instanceEntities, capacity);
+            singleRenderInfos = Arrays.copyOf(singleRenderInfos, capacity);
+        }
+    }
+
+}
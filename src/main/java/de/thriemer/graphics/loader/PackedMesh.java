@@ -0,0 +1,57 @@
+package de.thriemer.graphics.loader;
+
+import de.thriemer.engine.collision.Collider;
+import lombok.Getter;
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Vertex and index data of a mesh in one direct buffer, laid out like the buffer of a mesh arena:
+ * position and wobble interleaved with color and shininess, followed by the indices.
+ * It is packed on the thread that generated the mesh, the render thread only copies it as a whole.
+ * Only the bounds of the mesh information are kept, its heap arrays can be collected right after packing.
+ */
+@Getter
+public class PackedMesh {
+
+    //posAndWobble and colorAndShininess
+    public static final int VERTEX_BYTES = 32;
+
+    private final ByteBuffer data;
+    private final int vertexCount;
+    private final int indexCount;
+    private final Vector3f minAABB;
+    private final Vector3f maxAABB;
+    private final Vector3f centerPoint;
+    private final float radiusXZPlane;
+    private final float radius;
+    private final Collider collider;
+
+    public PackedMesh(MeshInformation mesh) {
+        vertexCount = mesh.vertexPositions.length / 4;
+        indexCount = mesh.indicies.length;
+        data = BufferUtils.createByteBuffer(vertexCount * VERTEX_BYTES + indexCount * 4);
+        FloatBuffer vertices = data.asFloatBuffer();
+        for (int i = 0; i < vertexCount; i++) {
+            vertices.put(i * 8, mesh.vertexPositions, i * 4, 4);
+            vertices.put(i * 8 + 4, mesh.colors, i * 4, 4);
+        }
+        data.position(vertexCount * VERTEX_BYTES);
+        data.asIntBuffer().put(mesh.indicies);
+        data.clear();
+        minAABB = mesh.minAABB;
+        maxAABB = mesh.maxAABB;
+        centerPoint = mesh.centerPoint;
+        radiusXZPlane = mesh.radiusXZPlane;
+        radius = mesh.radius;
+        collider = mesh.collider;
+    }
+
+    public long getByteSize() {
+        return data.capacity();
+    }
+
+}
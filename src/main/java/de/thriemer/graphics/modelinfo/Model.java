@@ -2,6 +2,7 @@ package de.thriemer.graphics.modelinfo;
 
 import de.thriemer.engine.collision.Collider;
 import de.thriemer.graphics.loader.MeshInformation;
+import de.thriemer.graphics.loader.PackedMesh;
 import lombok.Getter;
 import org.joml.Vector3f;
 
@@ -35,4 +36,8 @@ public class Model {
         this(info, meshInformation.centerPoint, meshInformation.radiusXZPlane, meshInformation.radius, meshInformation.minAABB, meshInformation.maxAABB, meshInformation.collider);
     }
 
+    public Model(RenderInfo info, PackedMesh mesh) {
+        this(info, mesh.getCenterPoint(), mesh.getRadiusXZPlane(), mesh.getRadius(), mesh.getMinAABB(), mesh.getMaxAABB(), mesh.getCollider());
+    }
+
 }
@@ -13,6 +13,8 @@ public class RenderInfo {
 private final int indicesCount;
     private int indexOffset;
     private int vertexOffset;
+    //only known for meshes placed in a mesh arena
+    private int vertexCount;
 
     public RenderInfo(Vao actualVao, int indicesCount, int indexOffset, int vertexOffset) {
         this.actualVao = actualVao;
@@ -22,6 +24,11 @@ private final int indicesCount;
         isMultiDrawCapable = true;
     }
 
+    public RenderInfo(Vao actualVao, int indicesCount, int indexOffset, int vertexOffset, int vertexCount) {
+        this(actualVao, indicesCount, indexOffset, vertexOffset);
+        this.vertexCount = vertexCount;
+    }
+
     public RenderInfo(Vao actualVao) {
         this.actualVao = actualVao;
         this.indicesCount = actualVao.getIndicesLength();
@@ -2,19 +2,21 @@ package de.thriemer.graphics.occlusion;
 
 import de.thriemer.disguisedphoenix.Entity;
 import de.thriemer.disguisedphoenix.rendering.CameraInformation;
-import de.thriemer.disguisedphoenix.terrain.World;
+import de.thriemer.engine.world.InstanceRanges;
+import de.thriemer.engine.world.SizeVisibility;
+import de.thriemer.engine.world.VisibilityPredicate;
 import de.thriemer.graphics.core.context.ContextInformation;
 import de.thriemer.graphics.core.objects.FrameBufferObject;
 import de.thriemer.graphics.core.objects.GPUTimerQuery;
+import de.thriemer.graphics.core.renderer.InstanceFormat;
 import de.thriemer.graphics.core.renderer.MultiIndirectRenderer;
+import de.thriemer.graphics.core.renderer.RenderQueue;
 import de.thriemer.graphics.core.shaders.Shader;
 import de.thriemer.graphics.core.shaders.ShaderFactory;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 import static org.lwjgl.opengl.GL11.glBindTexture;
 import static org.lwjgl.opengl.GL11.glGenTextures;
@@ -32,6 +34,8 @@ public class ShadowEffect {
     protected FrameBufferObject[] shadowMap = new FrameBufferObject[SHADOWS_CASCADES];
     int textureArray;
     private final ShadowCascade[] cascades = new ShadowCascade[SHADOWS_CASCADES];
+    private final SizeVisibility[] cascadeVisibilities = new SizeVisibility[SHADOWS_CASCADES];
+    private final RenderQueue[] cascadeQueues = new RenderQueue[SHADOWS_CASCADES];
     private final Shader shadowShader;
 
     private boolean enabled = true;
@@ -43,27 +47,50 @@ public class ShadowEffect {
         shadowTimer = new GPUTimerQuery("Cascading Shadows");
         for (int i = 0; i < SHADOWS_CASCADES; i++) {
             cascades[i] = new ShadowCascade();
+            cascadeVisibilities[i] = new SizeVisibility();
+            cascadeQueues[i] = new RenderQueue();
             shadowMap[i] = new FrameBufferObject(SHADOW_RESOLUTION, SHADOW_RESOLUTION, 0).addLayeredDepthTextureAttachment(textureArray, i);
         }
         ShaderFactory shaderFactory = new ShaderFactory("shadows/shadowVSMultiDraw.glsl", "shadows/shadowFS.glsl");
         shaderFactory.withAttributes("posAndWobble", "colorAndShininess", "transformationMatrix");
         shaderFactory.withUniforms("noiseMap", "time", "viewProjMatrix");
         shaderFactory.configureSampler("noiseMap", 0);
+        InstanceFormat.ACTIVE.configure(shaderFactory);
         shadowShader = shaderFactory.built();
     }
+    //the cascades have to be updated before the entities get collected, which happens in one pass together with the camera
+    public void updateCascades(CameraInformation cameraInformation, Vector3f lightPos) {
+        float near = cameraInformation.getNearPlane();
+        for (int i = 0; i < SHADOWS_CASCADES; i++) {
+            float cascadeFar = CASCADE_DISTANCE[i] * cameraInformation.getFarPlane();
+            cascades[i].update(cameraInformation.getViewMatrix(), near, cascadeFar, cameraInformation.getFov(), contextInformation.getAspectRatio(), lightPos);
+            near = cascadeFar;
+            //independent of the distance, r*r/size has to exceed 0.00001
+            cascadeVisibilities[i].set(cameraInformation.getCameraPosition(), 0, (float) Math.sqrt(0.00001f * cascades[i].size));
+            //front to back as seen from the light
+            cascadeQueues[i].begin(lightPos);
+        }
+    }
+
+    public Matrix4f getCascadeProjViewMatrix(int cascade) {
+        return cascades[cascade].getProjViewMatrix();
+    }
+
+    public VisibilityPredicate getCascadeVisibility(int cascade) {
+        return cascadeVisibilities[cascade];
+    }
+
+    public void addToCascade(int cascade, Entity entity) {
+        cascadeQueues[cascade].add(entity);
+    }
+
+    public void addToCascade(int cascade, InstanceRanges instances) {
+        cascadeQueues[cascade].addAll(instances);
+    }
+
     //TODO: improve shadow quality by PCF or reprojection
-    public void render(CameraInformation cameraInformation, float time, Vector3f lightPos, World world, MultiIndirectRenderer renderer) {
+    public void render(float time, MultiIndirectRenderer renderer) {
         if (isEnabled()) {
-
-            List<List<Entity>> inCascade = new ArrayList<>();
-            float near = cameraInformation.getNearPlane();
-            for (int i = 0; i < SHADOWS_CASCADES; i++) {
-                float cascadeFar = CASCADE_DISTANCE[i] * cameraInformation.getFarPlane();
-                cascades[i].update(cameraInformation.getViewMatrix(), near, cascadeFar, cameraInformation.getFov(), contextInformation.getAspectRatio(), lightPos);
-                near = cascadeFar;
-                 int finalI = i;
-                inCascade.add(world.getVisibleEntities(cascades[i].getProjViewMatrix(), (v,r)-> (r*r)/cascades[finalI].size> 0.00001));
-            }
             shadowTimer.startQuery();
             shadowShader.bind();
             shadowShader.loadFloat("time", time);
@@ -71,7 +98,7 @@ public class ShadowEffect {
                 shadowMap[i].bind();
                 shadowMap[i].clear();
                 shadowShader.loadMatrix("viewProjMatrix", cascades[i].getProjViewMatrix());
-                renderer.prepareRenderer(inCascade.get(i));
+                renderer.prepareRenderer(cascadeQueues[i]);
                 renderer.render();
             }
             shadowMap[0].unbind();
@@ -2,15 +2,13 @@ package de.thriemer.graphics.particles;
 
 import de.thriemer.disguisedphoenix.Main;
 import de.thriemer.disguisedphoenix.rendering.CameraInformation;
-import de.thriemer.graphics.core.objects.BufferObject;
+import de.thriemer.graphics.core.objects.StreamingBuffer;
 import de.thriemer.graphics.core.objects.Vao;
 import de.thriemer.graphics.core.shaders.Shader;
 import de.thriemer.graphics.core.shaders.ShaderFactory;
 import org.joml.Matrix4f;
-import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL11;
-import org.lwjgl.opengl.GL15;
-import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL42;
 
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
@@ -21,11 +19,11 @@ import static org.lwjgl.opengl.GL20.GL_ARRAY_BUFFER;
 
 public class ParticleManager {
 
+    //per batch, one frame's share of the streaming buffer
     private static final int INSTANCES_COUNT = 100000;
     private static final int INSTANCE_DATA_LENGTH = 20;
 
-    private final BufferObject matrixAndColor;
-    private final FloatBuffer buffer = BufferUtils.createFloatBuffer(INSTANCES_COUNT * INSTANCE_DATA_LENGTH);
+    private final StreamingBuffer matrixAndColor;
 
     private final List<ParticleEmitter> emitters = new ArrayList<>();
     private final List<Particle> inGameParticles = new ArrayList<>();
@@ -39,12 +37,12 @@ public class ParticleManager {
         shader = particleFactory.withUniforms("viewMatrix", "projMatrix").built();
         particleVao = new Vao();
         particleVao.addDataAttributes(0, 3, new float[]{0.5f, -0.5f, 0f, 0.5f, 0.5f, 0f, -0.5f, 0.5f, 0f, -0.5f, 0.5f, 0f, 0.5f, -0.5f, 0f, -0.5f, -0.5f, 0f});
-        matrixAndColor = new BufferObject(INSTANCES_COUNT * INSTANCE_DATA_LENGTH, GL_ARRAY_BUFFER, GL15.GL_DYNAMIC_DRAW).unbind();
-        particleVao.addInstancedAttribute(matrixAndColor, 1, 4, INSTANCE_DATA_LENGTH, 0);
-        particleVao.addInstancedAttribute(matrixAndColor, 2, 4, INSTANCE_DATA_LENGTH, 4);
-        particleVao.addInstancedAttribute(matrixAndColor, 3, 4, INSTANCE_DATA_LENGTH, 8);
-        particleVao.addInstancedAttribute(matrixAndColor, 4, 4, INSTANCE_DATA_LENGTH, 12);
-        particleVao.addInstancedAttribute(matrixAndColor, 5, 4, INSTANCE_DATA_LENGTH, 16);
+        matrixAndColor = new StreamingBuffer(GL_ARRAY_BUFFER, INSTANCE_DATA_LENGTH, INSTANCES_COUNT);
+        matrixAndColor.addInstancedAttribute(particleVao, 1, 4, 0);
+        matrixAndColor.addInstancedAttribute(particleVao, 2, 4, 4);
+        matrixAndColor.addInstancedAttribute(particleVao, 3, 4, 8);
+        matrixAndColor.addInstancedAttribute(particleVao, 4, 4, 12);
+        matrixAndColor.addInstancedAttribute(particleVao, 5, 4, 16);
         particleVao.unbind();
     }
 
@@ -70,9 +68,10 @@ public class ParticleManager {
         int toRenderParticles = inGameParticles.size();
         int particleOffset = 0;
         while (toRenderParticles > 0) {
-            buffer.clear();
-            int bufferOffset = 0;
             int instances = Math.min(toRenderParticles, INSTANCES_COUNT);
+            int firstInstance = matrixAndColor.allocate(instances);
+            FloatBuffer buffer = matrixAndColor.getFloats();
+            int bufferOffset = firstInstance * INSTANCE_DATA_LENGTH;
             for (int i = 0; i < instances; i++) {
                 Particle p = inGameParticles.get(i + particleOffset);
                 Matrix4f m = p.getTransformationMatrix(transposedViewMatrix);
@@ -81,8 +80,7 @@ public class ParticleManager {
                 p.getColor().get(bufferOffset, buffer);
                 bufferOffset += 4;
             }
-            matrixAndColor.updateVbo(buffer);
-            GL31.glDrawArraysInstanced(GL11.GL_TRIANGLE_STRIP, 0, 6, instances);
+            GL42.glDrawArraysInstancedBaseInstance(GL11.GL_TRIANGLE_STRIP, 0, 6, instances, firstInstance);
             Main.inViewObjects++;
             Main.inViewVerticies += 6;
             Main.facesDrawn += 2 * instances;
@@ -94,6 +92,11 @@ public class ParticleManager {
         GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
     }
 
+    //call once the particles of the frame are drawn
+    public void endFrame() {
+        matrixAndColor.endFrame();
+    }
+
     public void addParticleEmitter(ParticleEmitter pe) {
         emitters.add(pe);
     }
@@ -1,15 +1,29 @@
 #version 140
+#VAR compactInstances
 
 in vec4 posAndWobble;
 in vec4 colorAndShininess;
+#if compactInstances
+in vec4 instancePositionScale;
+in vec4 instanceRotation;
+#else
 in mat4 transformationMatrix;
+#endif
 
 uniform sampler2D noiseMap;
 uniform float time;
 uniform mat4 viewProjMatrix;
 
+vec3 rotate(vec4 q, vec3 v){
+    return v + 2.0*cross(q.xyz, cross(q.xyz, v) + q.w*v);
+}
+
 void main(){
+#if compactInstances
+    vec4 aPos = vec4(instancePositionScale.xyz + rotate(instanceRotation, posAndWobble.xyz*instancePositionScale.w), 1);
+#else
     vec4 aPos = transformationMatrix*vec4(posAndWobble.xyz, 1);
+#endif
     vec3 noise = (texture(noiseMap, aPos.xz*0.1+vec2(time, time+0.5)*0.1).xyz-0.5);
     aPos += vec4(noise, 0)*posAndWobble.w;
     gl_Position = viewProjMatrix * aPos;
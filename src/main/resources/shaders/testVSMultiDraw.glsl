@@ -1,9 +1,15 @@
 #version 140
+#VAR compactInstances
 precision highp float;
 
 in vec4 posAndWobble;
 in vec4 colorAndShininess;
+#if compactInstances
+in vec4 instancePositionScale;
+in vec4 instanceRotation;
+#else
 in mat4 transformationMatrixInput;
+#endif
 
 uniform int useInputTransformationMatrix;
 uniform sampler2D noiseMap;
@@ -16,15 +22,22 @@ uniform mat4 viewMatrix;
 out vec4 colorAndShininessPassed;
 out vec3 viewPos;
 
+vec3 rotate(vec4 q, vec3 v){
+    return v + 2.0*cross(q.xyz, cross(q.xyz, v) + q.w*v);
+}
+
 void main(){
-    mat4 transformationMatrix;
+    vec4 aPos;
     if (useInputTransformationMatrix==1){
-        transformationMatrix=transformationMatrixInput;
+#if compactInstances
+        aPos = vec4(instancePositionScale.xyz + rotate(instanceRotation, posAndWobble.xyz*instancePositionScale.w), 1);
+#else
+        aPos = transformationMatrixInput*vec4(posAndWobble.xyz, 1);
+#endif
     } else {
-        transformationMatrix=transformationMatrixUniform;
+        aPos = transformationMatrixUniform*vec4(posAndWobble.xyz, 1);
     }
     colorAndShininessPassed=colorAndShininess;
-    vec4 aPos = transformationMatrix*vec4(posAndWobble.xyz, 1);
     vec3 noise = (texture(noiseMap, aPos.xz*0.1+vec2(time, time+0.5)*0.1).xyz-0.5);
     aPos += vec4(noise, 0)*posAndWobble.w;
     vec4 bPos = viewMatrix*aPos;
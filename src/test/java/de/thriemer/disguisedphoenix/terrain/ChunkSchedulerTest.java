@@ -0,0 +1,65 @@
+package de.thriemer.disguisedphoenix.terrain;
+
+import org.joml.Vector2i;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkSchedulerTest {
+
+    private final ChunkScheduler scheduler = new ChunkScheduler();
+    private final AtomicInteger generated = new AtomicInteger();
+    private final ChunkScheduler.ChunkGenerator generator = (chunkIndex, lod, skirtBorders, populate) -> {
+        generated.incrementAndGet();
+        return null;
+    };
+
+    @AfterEach
+    void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void discardedReadyChunkIsGeneratedAgain() throws InterruptedException {
+        ChunkScheduler.ChunkJob job = generate(0);
+        //the chunk is requested with another level of detail while its result waits for the upload
+        scheduler.beginFrame();
+        scheduler.request(0, 0, 1, 0, true, 0);
+        assertFalse(scheduler.isCurrent(job));
+        scheduler.discard(job);
+        //the new request never reached a worker
+        scheduler.beginFrame();
+        ChunkScheduler.ChunkJob again = generate(0);
+        assertEquals(0, again.getLod());
+        assertEquals(2, generated.get());
+    }
+
+    @Test
+    void evictedChunkIsGeneratedAgain() throws InterruptedException {
+        ChunkScheduler.ChunkJob job = generate(0);
+        scheduler.markUploaded(job);
+        scheduler.beginFrame();
+        scheduler.request(0, 0, 1, 0, true, 0);
+        scheduler.evicted(new Vector2i(0, 0));
+        scheduler.beginFrame();
+        generate(0);
+        assertEquals(2, generated.get());
+    }
+
+    private ChunkScheduler.ChunkJob generate(int lod) throws InterruptedException {
+        scheduler.request(0, 0, lod, 0, true, 0);
+        scheduler.dispatch(generator);
+        ChunkScheduler.ChunkJob[] finished = new ChunkScheduler.ChunkJob[1];
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (finished[0] == null && System.nanoTime() < deadline) {
+            scheduler.collectFinished(job -> finished[0] = job);
+            Thread.sleep(1);
+        }
+        assertNotNull(finished[0], "chunk was not generated");
+        return finished[0];
+    }
+
+}